@@ -3,47 +3,79 @@ package com.github.ykozlov.perf.utils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.NameValuePair;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.entity.DeflateInputStream;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.*;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author Yegor Kozlov
@@ -54,28 +86,68 @@ public class AEMAgent {
     public static String[] DEFAULT_COLUMNS = {
             "Timestamp", "Path", "Method", "Status", "Time To First Byte", "Total Time", "Content-Length"};
 
+    // headers set by the JDK client itself
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "content-length", "expect", "host", "upgrade", "user-agent"));
+
+    // content codings that can be decoded with the JDK and HttpClient
+    private static final Set<String> CONTENT_CODINGS = new HashSet<>(Arrays.asList(
+            "gzip", "x-gzip", "deflate", "identity"));
+
     public interface ColumnData {
         void set(Report.Row row, int columnIndex, String response);
     }
 
+    /**
+     * Notified after each request. statusCode is 0 if the request failed with an exception.
+     */
+    public interface RequestListener {
+        void completed(String method, String url, int statusCode, long elapsed, long bytes);
+    }
+
     private CloseableHttpClient client;
     private String host;
-    private ExecutorService executor;
+    private ScheduledExecutorService executor;
     private final Report report;
-    private List<Long> times;
-    private Map<Pattern, String> rewritePatterns;
+    private final LongestTimes times = new LongestTimes(100);
+    private UrlRewriter rewriter;
     long timeStarted;
-    int numResources;
-    long bytesSent;
-    int numErrors;
+    final Metrics metrics = new Metrics();
     AtomicInteger counter = new AtomicInteger();
     CredentialsProvider credentialsProvider;
     int nThreads;
     HttpClientBuilder builder;
-    File dumpDir;
+    DumpWriter dumpWriter;
     Map<Integer, ColumnData> addedCols = new LinkedHashMap<>();
+    List<RequestListener> listeners = new CopyOnWriteArrayList<>();
     String requestIdHeader;
     String userAgent = "Fleetcor AEM Agent";
+    ResponseVerifier verifier;
+    int hashColumn = -1;
+    int verificationColumn = -1;
+    int maxConnTotal;
+    int maxConnPerRoute;
+    int validateAfterInactivity = 2000;
+    long keepAliveMillis;
+    int evictIdleSeconds;
+    PoolingHttpClientConnectionManager connectionManager;
+    boolean http2;
+    boolean http2NoHostnameVerification;
+    HttpClient http2Client;
+    Map<String, CompletableFuture<Void>> http2Connections = new ConcurrentHashMap<>();
+    int protocolColumn = -1;
+    int requestIdColumn = -1;
+    ValidatorCache validatorCache;
+    int conditionalColumn = -1;
+    String acceptEncoding;
+    int encodingColumn = -1;
+    UrlTemplates urlTemplates;
+    final PoolMonitor poolMonitor = new PoolMonitor(metrics);
+    final RateLimiter rateLimiter = new RateLimiter(0);
+    volatile String abortReason;
+    Semaphore credits;
+    final AtomicInteger pending = new AtomicInteger();
+    boolean recordRows = true;
 
     public AEMAgent(String host) {
         this(host, 1, null);
@@ -92,7 +164,6 @@ public class AEMAgent {
         this.executor = new RequestExecutor(nThreads);
         this.credentialsProvider = credentialsProvider;
         counter = new AtomicInteger();
-        times = Collections.synchronizedList(new ArrayList<Long>());
 
         report = new Report();
         report.setColumns(DEFAULT_COLUMNS);
@@ -111,41 +182,157 @@ public class AEMAgent {
                             .setUserAgent(userAgent)
             ;
 
-            try {
-                SSLContextBuilder sslContextBuilder = new SSLContextBuilder();
-                sslContextBuilder.loadTrustMaterial(KeyStore.getInstance(KeyStore.getDefaultType()),
-                        new TrustSelfSignedStrategy() {
-                            @Override
-                            public boolean isTrusted(X509Certificate[] chain,
-                                                     String authType)
-                                    throws CertificateException {
-                                return true;
-                            }
-                        });
-
-                SSLContext sslContext = sslContextBuilder.build();
-                // set a hostname verifier that verifies all
-                SSLConnectionSocketFactory socketFactory = new SSLConnectionSocketFactory(
-                        sslContext,
-                        NoopHostnameVerifier.INSTANCE);
-                builder.setSSLContext(sslContext);
-                builder.setSSLSocketFactory(socketFactory);
-            } catch (GeneralSecurityException e) {
-                throw new RuntimeException(e);
-            }
-
-            builder.setMaxConnTotal(nThreads).setMaxConnPerRoute(nThreads);
+            SSLContext sslContext = trustAllSslContext();
+            // set a hostname verifier that verifies all
+            SSLConnectionSocketFactory socketFactory = new SSLConnectionSocketFactory(
+                    sslContext,
+                    NoopHostnameVerifier.INSTANCE);
+
+            // the pool is configured explicitly, socket factories are wrapped to count new connections
+            Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", poolMonitor.wrap(PlainConnectionSocketFactory.getSocketFactory()))
+                    .register("https", poolMonitor.wrap(socketFactory))
+                    .build();
+            connectionManager = new PoolingHttpClientConnectionManager(registry);
+
+            int perRoute = maxConnPerRoute > 0 ? maxConnPerRoute : nThreads;
+            connectionManager.setDefaultMaxPerRoute(perRoute);
+            connectionManager.setMaxTotal(maxConnTotal > 0 ? maxConnTotal : Math.max(nThreads, perRoute));
+            connectionManager.setValidateAfterInactivity(validateAfterInactivity);
+            builder.setConnectionManager(connectionManager);
+            poolMonitor.setConnectionManager(connectionManager);
+            if (keepAliveMillis > 0) {
+                // keep-alive as advertised by the server, but not longer than configured
+                builder.setKeepAliveStrategy((response, context) -> {
+                    long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return duration > 0 ? Math.min(duration, keepAliveMillis) : keepAliveMillis;
+                });
+            }
+            if (evictIdleSeconds > 0) {
+                builder.evictExpiredConnections().evictIdleConnections(evictIdleSeconds, TimeUnit.SECONDS);
+            }
             if (credentialsProvider != null) builder.setDefaultCredentialsProvider(credentialsProvider);
+            // responses are decoded by the agent to measure the wire bytes
+            if (acceptEncoding != null) builder.disableContentCompression();
         }
         return builder;
 
     }
 
+    static SSLContext trustAllSslContext() {
+        try {
+            SSLContextBuilder sslContextBuilder = new SSLContextBuilder();
+            sslContextBuilder.loadTrustMaterial(KeyStore.getInstance(KeyStore.getDefaultType()),
+                    new TrustSelfSignedStrategy() {
+                        @Override
+                        public boolean isTrusted(X509Certificate[] chain,
+                                                 String authType)
+                                throws CertificateException {
+                            return true;
+                        }
+                    });
+            return sslContextBuilder.build();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The JDK client used in the HTTP/2 mode, it keeps one connection per host and multiplexes requests over it
+     */
+    public synchronized HttpClient getHttp2Client() {
+        if (http2Client == null) {
+            if (http2NoHostnameVerification) {
+                // the JDK client has no per-client hostname verifier, this internal property is read once when
+                // the java.net.http module initializes and applies to every JDK client in the JVM
+                System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+            }
+            http2Client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NEVER)
+                    .sslContext(trustAllSslContext())
+                    .build();
+        }
+        return http2Client;
+    }
+
+    /**
+     * Send requests over HTTP/2 with the JDK client instead of HttpClient 4. The negotiated protocol is recorded
+     * in the Protocol column, a server without HTTP/2 support is served over HTTP/1.1.
+     */
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+        if (http2 && protocolColumn < 0) protocolColumn = report.addColumn("Protocol");
+    }
+
+    /**
+     * Don't verify host names in the HTTP/2 mode, like NoopHostnameVerifier of the HttpClient 4 transport, e.g. to
+     * test by IP address. This sets the JVM-wide system property jdk.internal.httpclient.disableHostnameVerification,
+     * so it applies to all java.net.http clients of the process, and must be set before the first request.
+     */
+    public void setHttp2NoHostnameVerification(boolean flag) {
+        this.http2NoHostnameVerification = flag;
+    }
+
+    /**
+     * send a random id in the given header with each request and record it in the "Request Id" column,
+     * e.g. to match the requests with server logs by {@link LatencyCorrelator}
+     */
     public AEMAgent withRequestId(String headerName) {
         requestIdHeader = headerName;
+        if (requestIdColumn < 0) requestIdColumn = report.addColumn("Request Id");
         return this;
     }
 
+    /**
+     * remember the ETag and Last-Modified of responses and send the given fraction of GET requests to urls with
+     * known validators as conditional requests, recorded in the "Conditional" column
+     *
+     * @param capacity max. number of urls to keep validators for
+     * @param fraction 0 to 1
+     */
+    public AEMAgent withRevalidation(int capacity, double fraction) {
+        validatorCache = new ValidatorCache(capacity, fraction);
+        if (conditionalColumn < 0) conditionalColumn = report.addColumn("Conditional");
+        return this;
+    }
+
+    public ValidatorCache getValidatorCache() {
+        return validatorCache;
+    }
+
+    /**
+     * Send the given Accept-Encoding header and decode responses in the agent rather than in the client, so the
+     * compressed size on the wire, the decoded size and the time to decode are recorded for each request in the
+     * "Content-Encoding", "Wire Bytes", "Decoded Bytes" and "Decode Time, ms" columns.
+     *
+     * @param acceptEncoding e.g. "gzip, deflate" or "identity", q-values are allowed
+     * @throws IllegalArgumentException if a coding can't be decoded, e.g. br
+     */
+    public void setAcceptEncoding(String acceptEncoding) {
+        for (String coding : acceptEncoding.split(",")) {
+            String name = coding.split(";")[0].trim().toLowerCase();
+            if (!CONTENT_CODINGS.contains(name)) {
+                throw new IllegalArgumentException("unsupported content coding: " + name + ", supported are " + CONTENT_CODINGS);
+            }
+        }
+        this.acceptEncoding = acceptEncoding;
+        if (builder != null) builder.disableContentCompression();
+        if (encodingColumn < 0) {
+            encodingColumn = report.addColumn("Content-Encoding");
+            report.addColumn("Wire Bytes");
+            report.addColumn("Decoded Bytes");
+            report.addColumn("Decode Time, ms");
+        }
+    }
+
+    /**
+     * templates of the urls in the Flight Recorder request events, see {@link RequestEvent}
+     */
+    public void setUrlTemplates(UrlTemplates urlTemplates) {
+        this.urlTemplates = urlTemplates;
+    }
+
     public void addColumn(String col, ColumnData data) {
         int columnIndex = Arrays.asList(report.getColumns()).indexOf(col);
         if (columnIndex < 0) {
@@ -154,18 +341,113 @@ public class AEMAgent {
         addedCols.put(columnIndex, data);
     }
 
+    public void addListener(RequestListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * hash response bodies while reading them and compare the hashes with the baseline of the verifier
+     */
+    public void setVerifier(ResponseVerifier verifier) {
+        this.verifier = verifier;
+        hashColumn = report.addColumn("Body Hash");
+        verificationColumn = report.addColumn("Verification");
+    }
+
     private String requestUrl(String url) {
+        url = urlRewrite(url);
         return url.startsWith("http://") || url.startsWith("https://") ? url : (host + url);
     }
 
+    /**
+     * rewrite request urls with the patterns, in order, before they are resolved against the base url
+     */
     public void setRewritePatterns(Map<Pattern, String> rewritePatterns) {
-        this.rewritePatterns = rewritePatterns;
+        setUrlRewriter(new UrlRewriter(rewritePatterns));
+    }
+
+    public void setUrlRewriter(UrlRewriter rewriter) {
+        this.rewriter = rewriter;
     }
 
     public void setUserAgent(String userAgent) {
         this.userAgent = userAgent;
     }
 
+    /**
+     * @param maxConnTotal max. number of pooled connections, default is the number of threads
+     */
+    public void setMaxConnTotal(int maxConnTotal) {
+        this.maxConnTotal = maxConnTotal;
+    }
+
+    /**
+     * @param maxConnPerRoute max. number of pooled connections per host, default is the number of threads
+     */
+    public void setMaxConnPerRoute(int maxConnPerRoute) {
+        this.maxConnPerRoute = maxConnPerRoute;
+    }
+
+    /**
+     * @param millis check that a connection idle longer than this is still open before reusing it, default is 2000
+     */
+    public void setValidateAfterInactivity(int millis) {
+        this.validateAfterInactivity = millis;
+    }
+
+    /**
+     * @param millis max. time to keep an idle connection alive, 0 to follow the Keep-Alive header of the server
+     */
+    public void setKeepAlive(long millis) {
+        this.keepAliveMillis = millis;
+    }
+
+    /**
+     * @param seconds close expired connections and connections idle longer than this in the background, 0 to disable
+     */
+    public void setEvictIdle(int seconds) {
+        this.evictIdleSeconds = seconds;
+    }
+
+    public PoolMonitor getPoolMonitor() {
+        return poolMonitor;
+    }
+
+    /**
+     * @param rate max. requests per second per host, 0 for no limit
+     */
+    public void setRateLimit(double rate) {
+        rateLimiter.setRate(rate);
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * stop the run: queued requests are cancelled and new ones fail immediately, requests in flight complete
+     */
+    public void abort(String reason) {
+        synchronized (this) {
+            if (abortReason != null) return;
+            abortReason = reason;
+        }
+        logger.error("aborting the run, {}", reason);
+        List<Runnable> tasks = executor.shutdownNow();
+        logger.info("{} tasks cancelled", tasks.size());
+    }
+
+    public boolean isAborted() {
+        return abortReason != null;
+    }
+
+    /**
+     * @return why the run was aborted or null
+     */
+    public String getAbortReason() {
+        return abortReason;
+    }
+
     public String post(String url, List<NameValuePair> data) throws Exception {
         return post(url, new UrlEncodedFormEntity(data), null);
     }
@@ -212,36 +494,87 @@ public class AEMAgent {
         return process(method, null);
     }
 
+    /**
+     * @return host:port of the uri without the user info, the port defaults to that of the scheme
+     */
+    static String hostKey(URI uri) {
+        int port = uri.getPort();
+        if (port < 0) port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        return uri.getHost() + ":" + port;
+    }
+
     String process(HttpRequestBase method, BiFunction<String, Report.Row, Void> callback) throws IOException {
         String url = method.getURI().toString();
+        if (abortReason != null) throw new IOException("run aborted: " + abortReason);
+        RequestEvent event = new RequestEvent();
+        event.begin();
+        long throttled;
+        try {
+            throttled = rateLimiter.acquire(hostKey(method.getURI()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the rate limiter");
+        }
         Report.Row row;
-        synchronized (report) {
-            row = report.createRow();
+        if (recordRows) {
+            synchronized (report) {
+                row = report.createRow();
+            }
+        } else {
+            // filled in for the column callbacks, but not kept
+            row = report.new Row();
         }
         if(requestIdHeader != null) {
             String rId = UUID.randomUUID().toString();
             method.setHeader(requestIdHeader, rId);
+            row.setValue(requestIdColumn, rId);
         }
         row.setValue(0, new Date());
         row.setCellStyle(0, Report.STYLE_DATETIME);
         row.setValue(1, url.length() > 255 ? url : ("=HYPERLINK(\"" + url + "\")"));
         row.setCellStyle(1, Report.STYLE_HYPERLINK);
         row.setValue(2, method.getMethod());
+        boolean conditional = false;
+        if (validatorCache != null && "GET".equals(method.getMethod())
+                && !method.containsHeader("If-None-Match") && !method.containsHeader("If-Modified-Since")) {
+            ValidatorCache.Validators validators = validatorCache.select(url);
+            if (validators != null) {
+                if (validators.etag != null) method.setHeader("If-None-Match", validators.etag);
+                if (validators.lastModified != null) method.setHeader("If-Modified-Since", validators.lastModified);
+                conditional = true;
+            }
+            row.setValue(conditionalColumn, conditional ? "yes" : "no");
+        }
+        if (acceptEncoding != null && !method.containsHeader("Accept-Encoding")) {
+            method.setHeader("Accept-Encoding", acceptEncoding);
+        }
 
+        metrics.started(method.getMethod());
+        boolean completed = false;
         long t0 = System.currentTimeMillis();
-        try (CloseableHttpResponse response = getHttpClient().execute(method)) {
+        try {
+            MessageDigest digest = verifier == null ? null : ResponseVerifier.newDigest();
+            Response response = http2 ? executeHttp2(method, digest, t0) : execute(method, digest, t0);
+            long delta = response.timeToFirstByte;
+            String txt = response.body;
+            int statusCode = response.statusCode;
+            metrics.completed(statusCode, txt.length(), delta, System.currentTimeMillis() - t0);
+            completed = true;
 
-            HttpEntity e = response.getEntity();
-            long delta = System.currentTimeMillis() - t0;
-            String txt = EntityUtils.toString(e);
-            bytesSent += txt.length();
-
-            int statusCode = response.getStatusLine().getStatusCode();
             row.setValue(3, String.valueOf(statusCode));
+            if (protocolColumn >= 0) row.setValue(protocolColumn, response.protocol);
             times.add(delta);
             row.setValue(4, String.valueOf(delta));
             row.setValue(5, String.valueOf(System.currentTimeMillis() - t0));
             row.setValue(6, String.valueOf(txt.length()));
+            if (acceptEncoding != null) {
+                metrics.transferred(response.wireBytes, response.decodedBytes, response.decodeNanos,
+                        response.contentEncoding != null && !"identity".equalsIgnoreCase(response.contentEncoding));
+                row.setValue(encodingColumn, response.contentEncoding == null ? "" : response.contentEncoding);
+                row.setValue(encodingColumn + 1, response.wireBytes);
+                row.setValue(encodingColumn + 2, response.decodedBytes);
+                row.setValue(encodingColumn + 3, String.format("%.3f", response.decodeNanos / 1e6));
+            }
 
             for(Map.Entry<Integer, ColumnData> col : addedCols.entrySet()){
                 int colIdx = col.getKey();
@@ -251,67 +584,470 @@ public class AEMAgent {
 
             if(callback != null) callback.apply(txt, row);
 
-            if (dumpDir != null) {
-                File file = new File(dumpDir, url.replaceAll("https?://", "").replace("?", "/").replaceAll("[:\"<>]", "_"));
-                file.getParentFile().mkdirs();
-                try (FileWriter fw = new FileWriter(file)) {
-                    fw.write(txt);
+            // a 304 or an error page is not the body of the url, don't verify or dump it
+            boolean fullBody = statusCode >= 200 && statusCode < 300;
+            if (digest != null && fullBody) {
+                String hash = ResponseVerifier.toHex(digest.digest());
+                ResponseVerifier.Result result = verifier.verify(url, hash, txt);
+                row.setValue(hashColumn, hash);
+                row.setValue(verificationColumn, result.name());
+                if (result == ResponseVerifier.Result.MISMATCH) {
+                    row.setCellStyle(verificationColumn, Report.STYLE_BAD);
+                } else if (result == ResponseVerifier.Result.NORMALIZED_MATCH) {
+                    row.setCellStyle(verificationColumn, Report.STYLE_NEUTRAL);
+                }
+            }
+
+            if (dumpWriter != null && fullBody) {
+                dumpWriter.offer(url, txt);
+            }
+
+            if (validatorCache != null && "GET".equals(method.getMethod())) {
+                // a 304 may omit the validators, the cached ones are still valid then
+                if (statusCode == 200 || (statusCode == 304 && (response.etag != null || response.lastModified != null))) {
+                    validatorCache.put(url, response.etag, response.lastModified);
                 }
+                validatorCache.record(conditional, statusCode, System.currentTimeMillis() - t0, txt.length());
+            }
+
+            notifyListeners(method.getMethod(), url, statusCode, System.currentTimeMillis() - t0, txt.length());
+            event.end();
+            if (event.shouldCommit()) {
+                event.status = statusCode;
+                event.protocol = response.protocol;
+                event.conditional = conditional;
+                event.timeToFirstByte = delta;
+                event.decodeTime = response.decodeNanos;
+                event.bytes = txt.length();
+                event.wireBytes = response.wireBytes;
+                commit(event, method.getMethod(), url, throttled);
             }
 
             logger.debug("{}\t{}\t{}\t{}",statusCode, delta,txt.length(),url);
-            if (statusCode < 200 || statusCode >=300 ) {
+            if ((statusCode < 200 || statusCode >=300) && !(conditional && statusCode == 304)) {
                 row.setRowStyle(Report.STYLE_BAD);
                 logger.error("statusCode: {}, uri: {}, reason: {}",
-                        statusCode, method.getURI().toString(), response.getStatusLine().getReasonPhrase());
+                        statusCode, method.getURI().toString(), response.reason);
 
                 if (logger.isDebugEnabled()) {
-                    for (Header h : response.getAllHeaders()) {
-                        logger.debug(h.toString());
+                    for (String h : response.headers) {
+                        logger.debug(h);
                     }
                 } else if (statusCode == 302 || statusCode == 301) {
-                    logger.error("  Location: {}", response.getFirstHeader("Location").getValue());
+                    logger.error("  Location: {}", response.location);
                 }
-                numErrors++;
             }
 
             return txt;
         } catch (Throwable e) {
             logger.error("request failed", e);
+            if (!completed) metrics.failed(e);
             row.setRowStyle(Report.STYLE_BAD);
             row.setValue(6, e.getMessage());
+            notifyListeners(method.getMethod(), url, 0, System.currentTimeMillis() - t0, 0);
+            event.end();
+            if (event.shouldCommit()) {
+                event.error = e.toString();
+                commit(event, method.getMethod(), url, throttled);
+            }
             throw new IOException(e);
         }
     }
 
 
+    /**
+     * a failing listener is logged and doesn't fail the request or keep the other listeners from being notified
+     */
+    private void notifyListeners(String method, String url, int statusCode, long elapsed, long bytes) {
+        for (RequestListener l : listeners) {
+            try {
+                l.completed(method, url, statusCode, elapsed, bytes);
+            } catch (RuntimeException e) {
+                logger.error("listener {} failed", l, e);
+            }
+        }
+    }
+
+    private void commit(RequestEvent event, String method, String url, long throttled) {
+        event.method = method;
+        event.url = url;
+        event.template = urlTemplates == null ? null : urlTemplates.normalize(url);
+        event.throttled = throttled;
+        event.commit();
+    }
+
+    /**
+     * Response of either transport, headers are only collected for failed requests
+     */
+    static class Response {
+        int statusCode;
+        String reason;
+        String protocol;
+        long timeToFirstByte;
+        String body;
+        String location;
+        String etag;
+        String lastModified;
+        String contentEncoding;
+        long wireBytes;
+        long decodedBytes;
+        long decodeNanos;
+        List<String> headers = Collections.emptyList();
+    }
+
+    private Response execute(HttpRequestBase method, MessageDigest digest, long t0) throws IOException {
+        try (CloseableHttpResponse response = getHttpClient().execute(method)) {
+            Response r = new Response();
+            r.timeToFirstByte = System.currentTimeMillis() - t0;
+            if (acceptEncoding != null) {
+                HttpEntity entity = response.getEntity();
+                Header encoding = response.getFirstHeader("Content-Encoding");
+                r.body = decode(r, entity == null ? new byte[0] : EntityUtils.toByteArray(entity),
+                        encoding == null ? null : encoding.getValue(), entity == null ? null : ContentType.get(entity), digest);
+            } else {
+                r.body = readBody(response.getEntity(), digest);
+            }
+            r.statusCode = response.getStatusLine().getStatusCode();
+            r.reason = response.getStatusLine().getReasonPhrase();
+            r.protocol = response.getProtocolVersion().toString();
+            Header etag = response.getFirstHeader("ETag");
+            if (etag != null) r.etag = etag.getValue();
+            Header lastModified = response.getFirstHeader("Last-Modified");
+            if (lastModified != null) r.lastModified = lastModified.getValue();
+            if (r.statusCode < 200 || r.statusCode >= 300) {
+                r.headers = new ArrayList<>();
+                for (Header h : response.getAllHeaders()) {
+                    r.headers.add(h.toString());
+                }
+                Header location = response.getFirstHeader("Location");
+                if (location != null) r.location = location.getValue();
+            }
+            return r;
+        }
+    }
+
+    /**
+     * Send the request with the JDK client which multiplexes concurrent requests to a host as HTTP/2 streams
+     * over a single connection, h2 is negotiated with ALPN and h2c with an Upgrade on the first request.
+     */
+    private Response executeHttp2(HttpRequestBase method, MessageDigest digest, long t0) throws IOException, InterruptedException {
+        URI uri = method.getURI();
+        HttpRequest.Builder request = HttpRequest.newBuilder();
+        if (uri.getUserInfo() != null) {
+            // HttpClient 4 authenticates with the user info of the url, the JDK client ignores it
+            request.header("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+                    uri.getUserInfo().getBytes(StandardCharsets.UTF_8)));
+            uri = URI.create(uri.toString().replace(uri.getRawUserInfo() + "@", ""));
+        } else if (credentialsProvider != null) {
+            // the JDK client doesn't use the credentials provider, send its credentials preemptively
+            Credentials credentials = credentialsProvider.getCredentials(new AuthScope(uri.getHost(), uri.getPort()));
+            if (credentials != null) {
+                String password = credentials.getPassword() == null ? "" : credentials.getPassword();
+                request.header("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+                        (credentials.getUserPrincipal().getName() + ":" + password).getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        request.uri(uri);
+        request.header("User-Agent", userAgent);
+        for (Header h : method.getAllHeaders()) {
+            if (!RESTRICTED_HEADERS.contains(h.getName().toLowerCase())) request.header(h.getName(), h.getValue());
+        }
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+        if (method instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) method).getEntity() != null) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) method).getEntity();
+            if (entity.getContentType() != null) request.header("Content-Type", entity.getContentType().getValue());
+            body = HttpRequest.BodyPublishers.ofByteArray(EntityUtils.toByteArray(entity));
+        }
+        request.method(method.getMethod(), body);
+
+        // the JDK client opens a connection per request while the first one to a host is being established,
+        // so the first request to each host goes alone and the others are multiplexed over its connection
+        String authority = uri.getScheme() + "://" + uri.getAuthority();
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        CompletableFuture<Void> existing = http2Connections.putIfAbsent(authority, connected);
+        HttpResponse<InputStream> response;
+        if (existing != null) {
+            existing.join();
+            response = getHttp2Client().send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } else {
+            try {
+                response = getHttp2Client().send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } finally {
+                connected.complete(null);
+            }
+        }
+        Response r = new Response();
+        r.timeToFirstByte = System.currentTimeMillis() - t0;
+        ContentType contentType = null;
+        Optional<String> contentTypeHeader = response.headers().firstValue("Content-Type");
+        if (contentTypeHeader.isPresent()) {
+            try {
+                contentType = ContentType.parse(contentTypeHeader.get());
+            } catch (RuntimeException e) {
+                // unparsable content type, read as ISO-8859-1 like EntityUtils does
+            }
+        }
+        if (acceptEncoding != null) {
+            byte[] raw;
+            try (InputStream in = response.body()) {
+                raw = in.readAllBytes();
+            }
+            r.body = decode(r, raw, response.headers().firstValue("Content-Encoding").orElse(null), contentType, digest);
+        } else {
+            r.body = readBody(response.body(), contentType, digest);
+        }
+        r.statusCode = response.statusCode();
+        r.reason = "";
+        r.protocol = response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2" : "HTTP/1.1";
+        r.etag = response.headers().firstValue("ETag").orElse(null);
+        r.lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+        if (r.statusCode < 200 || r.statusCode >= 300) {
+            r.headers = new ArrayList<>();
+            for (Map.Entry<String, List<String>> h : response.headers().map().entrySet()) {
+                r.headers.add(h.getKey() + ": " + String.join(", ", h.getValue()));
+            }
+            r.location = response.headers().firstValue("Location").orElse(null);
+        }
+        return r;
+    }
+
+    /**
+     * Decode the body as received on the wire and record the sizes and the decoding time in the response
+     */
+    static String decode(Response r, byte[] raw, String encoding, ContentType contentType, MessageDigest digest) throws IOException {
+        r.contentEncoding = encoding;
+        r.wireBytes = raw.length;
+        long t0 = System.nanoTime();
+        byte[] decoded = raw;
+        String coding = encoding == null ? "identity" : encoding.trim().toLowerCase();
+        if (raw.length > 0 && !coding.equals("identity")) {
+            InputStream in;
+            switch (coding) {
+                case "gzip":
+                case "x-gzip":
+                    in = new GZIPInputStream(new ByteArrayInputStream(raw));
+                    break;
+                case "deflate":
+                    // zlib wrapped or raw deflate, as servers disagree
+                    in = new DeflateInputStream(new ByteArrayInputStream(raw));
+                    break;
+                default:
+                    throw new IOException("unsupported Content-Encoding: " + encoding);
+            }
+            try (InputStream stream = in) {
+                decoded = stream.readAllBytes();
+            }
+        }
+        r.decodeNanos = System.nanoTime() - t0;
+        r.decodedBytes = decoded.length;
+        return readBody(new ByteArrayInputStream(decoded), contentType, digest);
+    }
+
+    /**
+     * Read the body as {@link EntityUtils#toString(HttpEntity)} does, updating the digest on the fly if given
+     */
+    static String readBody(HttpEntity entity, MessageDigest digest) throws IOException {
+        // 304 and HEAD responses have no entity
+        if (entity == null) return "";
+        if (digest == null) return EntityUtils.toString(entity);
+        return readBody(entity.getContent(), ContentType.get(entity), digest);
+    }
+
+    static String readBody(InputStream content, ContentType contentType, MessageDigest digest) throws IOException {
+        Charset charset = null;
+        if (contentType != null) {
+            charset = contentType.getCharset();
+            ContentType defaultType = ContentType.getByMimeType(contentType.getMimeType());
+            if (charset == null && defaultType != null) charset = defaultType.getCharset();
+        }
+        if (charset == null) charset = StandardCharsets.ISO_8859_1;
+        try (InputStream in = digest == null ? content : new DigestInputStream(content, digest)) {
+            return new String(in.readAllBytes(), charset);
+        }
+    }
+
     public String head(String url) throws Exception {
         return process(new HttpHead(requestUrl(url)));
     }
 
     public Future<String> ajaxPost(String url, String data, ContentType contentType, BiFunction<String, Report.Row, Void> callback) {
-        numResources++;
-        return executor.submit(() -> post(url, new StringEntity(data, contentType), callback));
+        return submit(() -> post(url, new StringEntity(data, contentType), callback));
     }
 
     public Future<String> ajaxPost(String url, List<NameValuePair> data) throws Exception {
-        numResources++;
-        return executor.submit(() -> post(url, data));
+        return submit(() -> post(url, data));
     }
 
     public Future<String> ajaxGet(String url) {
-        numResources++;
-        return executor.submit(() -> get(url));
+        return submit(() -> get(url));
     }
 
     public Future<String> ajaxGet(String url, Map<String, String> headers) {
-        numResources++;
-        return executor.submit(() -> get(url, headers));
+        return submit(() -> get(url, headers));
     }
 
     public Future<String> ajaxOptions(final String url) {
-        numResources++;
-        return executor.submit(() -> options(url));
+        return submit(() -> options(url));
+    }
+
+    /**
+     * Fire-and-forget GET: no Future is created, so neither the request nor the body is retained after
+     * completion. Blocks while the in-flight limit is reached.
+     */
+    public void send(String url) {
+        send(url, true);
+    }
+
+    /**
+     * fire-and-forget GET that never blocks
+     *
+     * @return false if the in-flight limit is reached and the request was not sent
+     */
+    public boolean trySend(String url) {
+        if (credits != null && !credits.tryAcquire()) return false;
+        send(url, false);
+        return true;
+    }
+
+    private void send(String url, boolean acquire) {
+        if (acquire) acquireCredit();
+        pending.incrementAndGet();
+        Runnable task = () -> {
+            try {
+                get(url);
+            } catch (Exception e) {
+                // already logged and reported
+            } finally {
+                taskDone();
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            taskDone();
+            throw e;
+        }
+        metrics.submitted();
+    }
+
+    private <T> Future<T> submit(Callable<T> request) {
+        acquireCredit();
+        pending.incrementAndGet();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                try {
+                    return request.call();
+                } finally {
+                    taskDone();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            taskDone();
+            throw e;
+        }
+        metrics.submitted();
+        return future;
+    }
+
+    /**
+     * wait for a free slot if the number of requests in flight is limited
+     */
+    private void acquireCredit() {
+        if (credits == null) return;
+        try {
+            // requests cancelled by an abort never release their credit
+            while (!credits.tryAcquire(1, TimeUnit.SECONDS)) {
+                if (abortReason != null) throw new RejectedExecutionException("run aborted: " + abortReason);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("interrupted while waiting for a request to complete", e);
+        }
+    }
+
+    /**
+     * Take a credit of the in-flight limit for a chain of requests whose next request is scheduled when the previous
+     * one completes, e.g. a session, so at most one request of the chain is queued or executing. Blocks while the
+     * limit is reached. {@link #awaitCompletion(int)} waits for the chain until {@link #chainDone()}.
+     */
+    void acquireChain() {
+        acquireCredit();
+        pending.incrementAndGet();
+    }
+
+    void chainDone() {
+        taskDone();
+    }
+
+    /**
+     * schedule the next request of a chain started with {@link #acquireChain()}
+     */
+    ScheduledFuture<?> scheduleRequest(Runnable task, long delay, TimeUnit unit) {
+        ScheduledFuture<?> future = executor.schedule(task, delay, unit);
+        metrics.submitted();
+        return future;
+    }
+
+    private void taskDone() {
+        if (credits != null) credits.release();
+        if (pending.decrementAndGet() == 0) {
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until the submitted requests complete without shutting down, e.g. to start the next phase of a run.
+     * Requests scheduled with {@link #schedule(Runnable, long, TimeUnit)} are not tracked.
+     *
+     * @param seconds max. time to wait, 0 to wait indefinitely
+     * @return false if the time elapsed or the run was aborted
+     */
+    public boolean awaitCompletion(int seconds) throws InterruptedException {
+        long deadline = seconds > 0 ? System.currentTimeMillis() + seconds * 1000L : Long.MAX_VALUE;
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                long now = System.currentTimeMillis();
+                // requests cancelled by an abort never complete
+                if (abortReason != null || now >= deadline) return false;
+                pending.wait(Math.min(1000, deadline - now));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Limit the number of submitted requests that are queued or executing, further ajax and send calls block
+     * until a request completes. By default the work queue is unbounded.
+     *
+     * @param maxInFlight max. number of submitted requests, 0 for no limit
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        credits = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+    }
+
+    /**
+     * @return number of requests that can be submitted without blocking, or -1 if not limited
+     */
+    public int getCredits() {
+        return credits == null ? -1 : credits.availablePermits();
+    }
+
+    /**
+     * @param recordRows false to not keep a report row per request, e.g. for long runs where only the aggregated
+     *                   metrics and listeners matter
+     */
+    public void setRecordRows(boolean recordRows) {
+        this.recordRows = recordRows;
+    }
+
+    /**
+     * run a task on the request threads after the given delay, e.g. the next request of a session
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return executor.schedule(task, delay, unit);
     }
 
     public void shutdown() throws InterruptedException, IOException {
@@ -333,51 +1069,121 @@ public class AEMAgent {
                 break;
             }
         }
+        poolMonitor.stop();
         getHttpClient().close();
+        if (dumpWriter != null) dumpWriter.close();
     }
 
     public Report getReport() throws InterruptedException {
         return report;
     }
 
+    /**
+     * @return up to N longest times to first byte in ascending order, at most the 100 longest are kept
+     */
     public List<Long> getTop(int N) {
-        Collections.sort(times);
-        return times.subList(Math.max(0, times.size() - N), times.size());
+        List<Long> top = times.toList();
+        return top.subList(Math.max(0, top.size() - N), top.size());
+    }
+
+    /**
+     * The N longest times in a min-heap. Most values are shorter than the shortest kept one once the heap is full
+     * and are rejected without taking the lock.
+     */
+    static class LongestTimes {
+        private final PriorityQueue<Long> heap;
+        private final int capacity;
+        private volatile long threshold = Long.MIN_VALUE;
+
+        LongestTimes(int capacity) {
+            this.capacity = capacity;
+            this.heap = new PriorityQueue<>(capacity);
+        }
+
+        void add(long value) {
+            if (value <= threshold) return;
+            synchronized (this) {
+                if (heap.size() < capacity) {
+                    heap.add(value);
+                } else if (value > heap.peek()) {
+                    heap.poll();
+                    heap.add(value);
+                }
+                if (heap.size() == capacity) threshold = heap.peek();
+            }
+        }
+
+        synchronized void clear() {
+            heap.clear();
+            threshold = Long.MIN_VALUE;
+        }
+
+        synchronized List<Long> toList() {
+            List<Long> list = new ArrayList<>(heap);
+            Collections.sort(list);
+            return list;
+        }
+    }
+
+    /**
+     * Discard the statistics of the requests sent so far, e.g. of a warmup: the metrics, connection counts and
+     * longest times. Only call when no requests are in flight.
+     */
+    public void resetStats() {
+        metrics.reset();
+        poolMonitor.reset();
+        times.clear();
+        timeStarted = System.currentTimeMillis();
     }
 
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return number of completed requests, including failed ones
+     */
     public int getNumProcessed() {
-        return numResources;
+        return (int) metrics.getRequests();
     }
 
+    /**
+     * @return number of failed requests and responses with a status outside of 2xx, except 304
+     */
     public int getNumErrors() {
-        return numErrors;
+        return (int) metrics.getErrors();
     }
 
     public long getBytesSent() {
-        return bytesSent;
+        return metrics.getBytes();
     }
 
+    /**
+     * @return average time to first byte, ms
+     */
     public long getAverageTime() {
-        long avg = 0;
-        for (long ms : times) avg += ms;
-        return times.size() == 0 ? 0 : avg / times.size();
+        return metrics.getAverageTimeToFirstByte();
     }
 
 
+    /**
+     * @return the url rewritten by the first rewrite pattern that changes it, or the url itself
+     */
     public String urlRewrite(String url) {
-        for (Pattern ptrn : rewritePatterns.keySet()) {
-            Matcher m = ptrn.matcher(url);
-            String replacement = rewritePatterns.get(ptrn);
-            String s = m.replaceAll(replacement);
-            if (!s.equals(url)) {
-                return s;
-            }
-        }
-        return url;
+        return rewriter == null ? url : rewriter.rewrite(url);
     }
 
     public void setDumpDir(File dir) {
-        dumpDir = dir;
+        setDumpDir(dir, false);
+    }
+
+    /**
+     * dump response bodies to the directory on a background thread
+     *
+     * @param gzip whether to compress the stored bodies
+     */
+    public void setDumpDir(File dir, boolean gzip) {
+        dumpWriter = new DumpWriter(dir, gzip, 1024);
     }
 
     public static class RequestExecutor extends ScheduledThreadPoolExecutor {
@@ -416,7 +1222,23 @@ public class AEMAgent {
         private CredentialsProvider credentials;
         private Map<Pattern, String> rewritePatterns;
         private File dir;
+        private boolean gzipDump;
+        private int maxConnTotal;
+        private int maxConnPerRoute;
+        private int validateAfterInactivity = -1;
+        private long keepAliveMillis;
+        private int evictIdleSeconds;
+        private boolean http2;
+        private boolean http2NoHostnameVerification;
         private String userAgent;
+        private double rateLimit;
+        private int maxInFlight;
+        private String requestIdHeader;
+        private boolean recordRows = true;
+        private int validatorCacheSize;
+        private double revalidateFraction;
+        private String acceptEncoding;
+        private UrlTemplates urlTemplates;
 
         public Builder() {
             rewritePatterns = new LinkedHashMap<>();
@@ -441,6 +1263,93 @@ public class AEMAgent {
             return this;
         }
 
+        public Builder withMaxConnTotal(int maxConnTotal) {
+            this.maxConnTotal = maxConnTotal;
+            return this;
+        }
+
+        public Builder withMaxConnPerRoute(int maxConnPerRoute) {
+            this.maxConnPerRoute = maxConnPerRoute;
+            return this;
+        }
+
+        public Builder withValidateAfterInactivity(int millis) {
+            this.validateAfterInactivity = millis;
+            return this;
+        }
+
+        public Builder withKeepAlive(long millis) {
+            this.keepAliveMillis = millis;
+            return this;
+        }
+
+        public Builder withEvictIdle(int seconds) {
+            this.evictIdleSeconds = seconds;
+            return this;
+        }
+
+        public Builder withHttp2(boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        /**
+         * see {@link AEMAgent#setHttp2NoHostnameVerification(boolean)}
+         */
+        public Builder withHttp2NoHostnameVerification(boolean flag) {
+            this.http2NoHostnameVerification = flag;
+            return this;
+        }
+
+        /**
+         * @param rate max. requests per second per host, 0 for no limit
+         */
+        public Builder withRateLimit(double rate) {
+            this.rateLimit = rate;
+            return this;
+        }
+
+        /**
+         * @param maxInFlight max. number of submitted requests, further submissions block, 0 for no limit
+         */
+        public Builder withMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        public Builder withRequestId(String headerName) {
+            this.requestIdHeader = headerName;
+            return this;
+        }
+
+        /**
+         * @param capacity max. number of urls to keep ETag and Last-Modified validators for
+         * @param fraction share of GET requests with known validators to send as conditional requests
+         */
+        public Builder withRevalidation(int capacity, double fraction) {
+            this.validatorCacheSize = capacity;
+            this.revalidateFraction = fraction;
+            return this;
+        }
+
+        /**
+         * @param acceptEncoding Accept-Encoding to send, responses are decoded by the agent to measure wire bytes
+         */
+        public Builder withAcceptEncoding(String acceptEncoding) {
+            this.acceptEncoding = acceptEncoding;
+            return this;
+        }
+
+        public Builder withUrlTemplates(UrlTemplates urlTemplates) {
+            this.urlTemplates = urlTemplates;
+            return this;
+        }
+
+        public Builder withRecordRows(boolean recordRows) {
+            this.recordRows = recordRows;
+            return this;
+        }
+
         public Builder withCredentials(CredentialsProvider credentials) {
             this.credentials = credentials;
             return this;
@@ -451,8 +1360,22 @@ public class AEMAgent {
             return this;
         }
 
+        /**
+         * @param rule regex=replacement split at the first =, an = in the regex is escaped as \=
+         */
+        public Builder withRewriteRule(String rule) {
+            int idx = UrlRewriter.ruleSeparator(rule);
+            if (idx <= 0) throw new IllegalArgumentException("invalid rewrite rule, expected regex=replacement: " + rule);
+            return withRewritePattern(Pattern.compile(rule.substring(0, idx)), rule.substring(idx + 1));
+        }
+
         public Builder dumpTo(File dir) {
+            return dumpTo(dir, false);
+        }
+
+        public Builder dumpTo(File dir, boolean gzip) {
             this.dir = dir;
+            this.gzipDump = gzip;
             dir.mkdirs();
             return this;
         }
@@ -463,8 +1386,22 @@ public class AEMAgent {
             if (!rewritePatterns.isEmpty()) {
                 agent.setRewritePatterns(rewritePatterns);
             }
-            if (dir != null) agent.setDumpDir(dir);
+            if (dir != null) agent.setDumpDir(dir, gzipDump);
             if (userAgent != null) agent.setUserAgent(userAgent);
+            agent.setMaxConnTotal(maxConnTotal);
+            agent.setMaxConnPerRoute(maxConnPerRoute);
+            if (validateAfterInactivity >= 0) agent.setValidateAfterInactivity(validateAfterInactivity);
+            agent.setKeepAlive(keepAliveMillis);
+            agent.setEvictIdle(evictIdleSeconds);
+            if (http2) agent.setHttp2(true);
+            agent.setHttp2NoHostnameVerification(http2NoHostnameVerification);
+            agent.setRateLimit(rateLimit);
+            agent.setMaxInFlight(maxInFlight);
+            agent.setRecordRows(recordRows);
+            if (requestIdHeader != null) agent.withRequestId(requestIdHeader);
+            if (revalidateFraction > 0) agent.withRevalidation(validatorCacheSize, revalidateFraction);
+            if (acceptEncoding != null) agent.setAcceptEncoding(acceptEncoding);
+            agent.setUrlTemplates(urlTemplates);
             return agent;
         }
     }
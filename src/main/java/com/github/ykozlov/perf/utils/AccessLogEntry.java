@@ -0,0 +1,110 @@
+package com.github.ykozlov.perf.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A parsed access log line, see {@link AccessLogFormat}
+ */
+public class AccessLogEntry {
+    String clientIp;
+    String user;
+    long timestamp = -1;
+    String method;
+    String path;
+    String protocol;
+    int status;
+    long bytes;
+    String referrer;
+    String userAgent;
+    long timeTaken = -1;
+    Map<String, String> fields;
+
+    public String getClientIp() {
+        return clientIp;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * @return epoch millis or -1 if the format has no %t
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return request path with the query string
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return response size, 0 if logged as '-'
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public String getReferrer() {
+        return referrer;
+    }
+
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    /**
+     * @return time taken to serve the request in microseconds (%D or %T) or -1 if not logged
+     */
+    public long getTimeTaken() {
+        return timeTaken;
+    }
+
+    /**
+     * @param name header or variable name as in the format, e.g. <code>X-Forwarded-For</code> for %{X-Forwarded-For}i
+     */
+    public String getField(String name) {
+        return fields == null ? null : fields.get(name);
+    }
+
+    public Map<String, String> getFields() {
+        return fields == null ? Collections.emptyMap() : fields;
+    }
+
+    void setField(String name, String value) {
+        if (fields == null) fields = new HashMap<>(4);
+        fields.put(name, value);
+    }
+
+    @Override
+    public String toString() {
+        return "AccessLogEntry{" +
+                "clientIp='" + clientIp + '\'' +
+                ", timestamp=" + timestamp +
+                ", method='" + method + '\'' +
+                ", path='" + path + '\'' +
+                ", status=" + status +
+                ", bytes=" + bytes +
+                ", referrer='" + referrer + '\'' +
+                ", userAgent='" + userAgent + '\'' +
+                ", fields=" + fields +
+                '}';
+    }
+}
@@ -0,0 +1,248 @@
+package com.github.ykozlov.perf.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Access log format defined by an Apache <code>LogFormat</code> string, e.g.
+ * <code>%h %l %u %t "%r" %&gt;s %b "%{Referer}i" "%{User-Agent}i"</code>.
+ * <p>
+ * Lines are parsed by a single left-to-right scan: each field extends up to the literal text that follows it
+ * in the format, quoted fields skip escaped quotes. Unlike a regex with greedy groups there is no backtracking,
+ * so the cost is linear in the line length. Supported directives: %h %a %l %u %t %r %m %U %q %H %s %&gt;s %b %B
+ * %D %T and %{Name}i / %{Name}o / %{Name}e / %{Name}C; other directives are kept as named fields. The format must
+ * contain %r or %U.
+ */
+public class AccessLogFormat {
+    public static final AccessLogFormat COMBINED =
+            new AccessLogFormat("%h %l %u %t \"%r\" %>s %b \"%{Referer}i\" \"%{User-Agent}i\"");
+    /**
+     * dispatcher log with the client address forwarded by the load balancer
+     */
+    public static final AccessLogFormat DISPATCHER =
+            new AccessLogFormat("%h \"%{X-Forwarded-For}i\" %u %t \"%r\" %>s %b \"%{Referer}i\" \"%{User-Agent}i\"");
+    /**
+     * combined format followed by the time taken and the cache status of the edge
+     */
+    public static final AccessLogFormat CDN =
+            new AccessLogFormat("%h %l %u %t \"%r\" %>s %b \"%{Referer}i\" \"%{User-Agent}i\" %D \"%{X-Cache}o\"");
+
+    private static class Token {
+        String literal;
+        char directive;
+        String name;
+        boolean quoted;
+    }
+
+    private final String pattern;
+    private final Token[] tokens;
+
+    public AccessLogFormat(String pattern) {
+        this.pattern = pattern;
+        this.tokens = compile(pattern);
+    }
+
+    /**
+     * @param nameOrPattern one of <code>combined</code>, <code>dispatcher</code>, <code>cdn</code> or a LogFormat string
+     */
+    public static AccessLogFormat forName(String nameOrPattern) {
+        switch (nameOrPattern.toLowerCase()) {
+            case "combined":
+                return COMBINED;
+            case "dispatcher":
+                return DISPATCHER;
+            case "cdn":
+                return CDN;
+            default:
+                return new AccessLogFormat(nameOrPattern);
+        }
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return the parsed entry or null if the line does not match the format
+     */
+    public AccessLogEntry parse(String line) {
+        AccessLogEntry e = new AccessLogEntry();
+        return parse(line, e) ? e : null;
+    }
+
+    public boolean parse(String line, AccessLogEntry e) {
+        int pos = 0;
+        int len = line.length();
+        for (int i = 0; i < tokens.length; i++) {
+            Token t = tokens[i];
+            if (t.literal != null) {
+                if (!line.startsWith(t.literal, pos)) return false;
+                pos += t.literal.length();
+                continue;
+            }
+            if (t.directive == 't') {
+                if (pos >= len || line.charAt(pos) != '[') return false;
+                int end = line.indexOf(']', pos);
+                if (end < 0) return false;
+                e.timestamp = LogIndex.parseDate(line, pos + 1);
+                if (e.timestamp == -1) return false;
+                pos = end + 1;
+                continue;
+            }
+            int end;
+            if (i + 1 == tokens.length) {
+                end = len;
+                while (end > pos && Character.isWhitespace(line.charAt(end - 1))) end--;
+            } else {
+                String next = tokens[i + 1].literal;
+                end = t.quoted ? closingQuote(line, pos, next) : line.indexOf(next, pos);
+            }
+            if (end < 0) return false;
+            if (!assign(t, line, pos, end, e)) return false;
+            pos = end;
+        }
+        return true;
+    }
+
+    private static int closingQuote(String line, int pos, String next) {
+        int end = line.indexOf(next, pos);
+        while (end > pos && line.charAt(end - 1) == '\\') {
+            end = line.indexOf(next, end + 1);
+        }
+        return end;
+    }
+
+    private static boolean assign(Token t, String line, int start, int end, AccessLogEntry e) {
+        switch (t.directive) {
+            case 'h':
+            case 'a':
+                e.clientIp = line.substring(start, end);
+                return true;
+            case 'l':
+                return true;
+            case 'u':
+                e.user = line.substring(start, end);
+                return true;
+            case 'r':
+                int sp1 = line.indexOf(' ', start);
+                int sp2 = line.lastIndexOf(' ', end - 1);
+                if (sp1 < 0 || sp1 >= end || sp2 <= sp1) return false;
+                e.method = line.substring(start, sp1);
+                e.path = line.substring(sp1 + 1, sp2);
+                e.protocol = line.substring(sp2 + 1, end);
+                return true;
+            case 'm':
+                e.method = line.substring(start, end);
+                return true;
+            case 'U':
+                e.path = line.substring(start, end);
+                return true;
+            case 'q':
+                e.path = e.path == null ? line.substring(start, end) : e.path + line.substring(start, end);
+                return true;
+            case 'H':
+                e.protocol = line.substring(start, end);
+                return true;
+            case 's':
+                e.status = (int) parseLong(line, start, end);
+                return e.status >= 0;
+            case 'b':
+            case 'B':
+                e.bytes = parseLong(line, start, end);
+                return e.bytes >= 0;
+            case 'D':
+                e.timeTaken = parseLong(line, start, end);
+                return true;
+            case 'T':
+                long sec = parseLong(line, start, end);
+                e.timeTaken = sec < 0 ? -1 : sec * 1000000;
+                return true;
+            case 'i':
+                String value = line.substring(start, end);
+                if ("Referer".equalsIgnoreCase(t.name)) e.referrer = value;
+                else if ("User-Agent".equalsIgnoreCase(t.name)) e.userAgent = value;
+                else e.setField(t.name, value);
+                return true;
+            default:
+                e.setField(t.name, line.substring(start, end));
+                return true;
+        }
+    }
+
+    /**
+     * @return the number, 0 for '-' or -1 if the value is not a number
+     */
+    private static long parseLong(String line, int start, int end) {
+        if (end - start == 1 && line.charAt(start) == '-') return 0;
+        if (end == start) return -1;
+        long v = 0;
+        for (int i = start; i < end; i++) {
+            int d = line.charAt(i) - '0';
+            if (d < 0 || d > 9) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static Token[] compile(String pattern) {
+        List<Token> tokens = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        boolean hasPath = false;
+        int len = pattern.length();
+        for (int i = 0; i < len; i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < len) {
+                literal.append(pattern.charAt(++i));
+                continue;
+            }
+            if (c != '%' || i + 1 == len) {
+                literal.append(c);
+                continue;
+            }
+            if (pattern.charAt(i + 1) == '%') {
+                literal.append('%');
+                i++;
+                continue;
+            }
+            Token t = new Token();
+            int j = i + 1;
+            if (pattern.charAt(j) == '{') {
+                int close = pattern.indexOf('}', j);
+                if (close < 0) throw new IllegalArgumentException("unclosed %{ in " + pattern);
+                t.name = pattern.substring(j + 1, close);
+                j = close + 1;
+            }
+            // modifiers such as %>s or %<s
+            while (j < len && (pattern.charAt(j) == '>' || pattern.charAt(j) == '<')) j++;
+            if (j == len) throw new IllegalArgumentException("incomplete directive at the end of " + pattern);
+            t.directive = pattern.charAt(j);
+            if (t.name == null) t.name = "%" + t.directive;
+            if (t.directive == 'r' || t.directive == 'U') hasPath = true;
+            i = j;
+
+            if (literal.length() > 0) {
+                Token lt = new Token();
+                lt.literal = literal.toString();
+                tokens.add(lt);
+                literal.setLength(0);
+            } else if (!tokens.isEmpty()) {
+                throw new IllegalArgumentException("directives must be separated by literal text: " + pattern);
+            }
+            t.quoted = !tokens.isEmpty() && tokens.get(tokens.size() - 1).literal.endsWith("\"");
+            tokens.add(t);
+        }
+        if (literal.length() > 0) {
+            Token lt = new Token();
+            lt.literal = literal.toString();
+            tokens.add(lt);
+        }
+        // every tool keys requests by path
+        if (!hasPath) throw new IllegalArgumentException("the format has no request line %r or path %U: " + pattern);
+        return tokens.toArray(new Token[0]);
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
@@ -0,0 +1,291 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming access log reader shared by the tools that consume access logs.
+ * <p>
+ * The file is split into chunks aligned to line boundaries which are parsed in parallel by a pool of
+ * worker threads. Parsed entries are delivered to the consumer on the calling thread in file order,
+ * and only a bounded number of chunks is in flight at any time, so memory does not depend on the file size.
+ * A time range can be given to read only the relevant part of the file using the {@link LogIndex} sidecar.
+ */
+public class AccessLogReader {
+    private static final Logger logger = LoggerFactory.getLogger(AccessLogReader.class);
+
+    private final AccessLogFormat format;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = 4 * 1024 * 1024;
+    private long from = 0;
+    private long to = Long.MAX_VALUE;
+    private final AtomicLong numLines = new AtomicLong();
+    private final AtomicLong numInvalid = new AtomicLong();
+
+    public AccessLogReader(AccessLogFormat format) {
+        this.format = format;
+    }
+
+    public AccessLogReader withThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    public AccessLogReader withChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * @param from epoch millis, inclusive, 0 to read from the beginning
+     * @param to   epoch millis, exclusive, Long.MAX_VALUE to read till the end
+     */
+    public AccessLogReader withTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    public AccessLogFormat getFormat() {
+        return format;
+    }
+
+    public long getNumLines() {
+        return numLines.get();
+    }
+
+    public long getNumInvalid() {
+        return numInvalid.get();
+    }
+
+    public List<AccessLogEntry> readAll(Path log) throws IOException {
+        List<AccessLogEntry> entries = new ArrayList<>();
+        read(log, entries::add);
+        return entries;
+    }
+
+    /**
+     * parse the log and pass valid entries to the consumer in file order
+     */
+    public void read(Path log, Consumer<AccessLogEntry> consumer) throws IOException {
+        long start = 0;
+        long end = Files.size(log);
+        if (from > 0 || to < Long.MAX_VALUE) {
+            long[] range = LogIndex.open(log).byteRange(from, to);
+            start = range[0];
+            end = range[1];
+        }
+        if (start >= end) return;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "access-log-reader");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ArrayDeque<Future<List<AccessLogEntry>>> pending = new ArrayDeque<>();
+            long chunkStart = start;
+            while (chunkStart < end || !pending.isEmpty()) {
+                while (chunkStart < end && pending.size() < threads * 2) {
+                    long chunkEnd = Math.min(end, chunkStart + chunkSize);
+                    boolean first = chunkStart == start;
+                    long s = chunkStart;
+                    long e = chunkEnd;
+                    long limit = end;
+                    pending.add(pool.submit(() -> parseChunk(log, s, e, limit, first)));
+                    chunkStart = chunkEnd;
+                }
+                List<AccessLogEntry> entries = pending.poll().get();
+                for (AccessLogEntry entry : entries) {
+                    consumer.accept(entry);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Parse lines starting within [chunkStart, chunkEnd). A chunk that does not start at the beginning of
+     * the range skips the partial line at its start, it belongs to the previous chunk.
+     */
+    private List<AccessLogEntry> parseChunk(Path log, long chunkStart, long chunkEnd, long limit, boolean first) throws IOException {
+        List<AccessLogEntry> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            LineReader reader = new LineReader(channel, first ? chunkStart : chunkStart - 1, limit);
+            if (!first) {
+                // skip the tail of the line that started in the previous chunk
+                reader.nextLine();
+            }
+            String str;
+            while (reader.position() < chunkEnd && (str = reader.nextLine()) != null) {
+                if (str.isEmpty()) continue;
+                numLines.incrementAndGet();
+                AccessLogEntry entry = format.parse(str);
+                if (entry == null) {
+                    if (numInvalid.incrementAndGet() <= 10) logger.warn("invalid access log entry: {}", str);
+                    continue;
+                }
+                if (entry.timestamp != -1 && (entry.timestamp < from || entry.timestamp >= to)) {
+                    continue;
+                }
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads lines from a region of a file, scanning blocks of bytes for line breaks
+     */
+    static class LineReader {
+        private final FileChannel channel;
+        private final long limit;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream(256);
+        private long filePos;
+        private long position;
+        private int p;
+        private int n;
+
+        LineReader(FileChannel channel, long start, long limit) {
+            this.channel = channel;
+            this.limit = limit;
+            this.filePos = start;
+            this.position = start;
+        }
+
+        /**
+         * @return offset of the first byte after the last returned line
+         */
+        long position() {
+            return position;
+        }
+
+        /**
+         * @return the next line without the line break or null at the end of the region
+         */
+        String nextLine() throws IOException {
+            byte[] arr = buffer.array();
+            partial.reset();
+            while (true) {
+                for (int i = p; i < n; i++) {
+                    if (arr[i] == '\n') {
+                        int end = i > p && arr[i - 1] == '\r' ? i - 1 : i;
+                        String line;
+                        if (partial.size() > 0) {
+                            partial.write(arr, p, end - p);
+                            line = partial.toString(StandardCharsets.UTF_8.name());
+                        } else {
+                            line = new String(arr, p, end - p, StandardCharsets.UTF_8);
+                        }
+                        position += i - p + 1;
+                        p = i + 1;
+                        return line;
+                    }
+                }
+                partial.write(arr, p, n - p);
+                position += n - p;
+                p = n = 0;
+                if (filePos >= limit) {
+                    return partial.size() > 0 ? partial.toString(StandardCharsets.UTF_8.name()) : null;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), limit - filePos));
+                int read = channel.read(buffer, filePos);
+                if (read <= 0) {
+                    return partial.size() > 0 ? partial.toString(StandardCharsets.UTF_8.name()) : null;
+                }
+                filePos += read;
+                n = read;
+            }
+        }
+    }
+
+    static void usage() {
+        System.err.println("Usage: com.github.ykozlov.perf.utils.AccessLogReader [options...] <file>");
+        System.err.println("  Compares the throughput of AccessLogReader with the regex used by the tools before");
+        System.err.println("  --log-format name|pattern      combined, dispatcher (default), cdn or an Apache LogFormat string");
+        System.err.println("  --threads N                    Number of parser threads, default is the number of cpus");
+        System.err.println("  --runs N                       Number of measured runs, default is 3");
+    }
+
+    public static void main(String[] args) throws IOException {
+        AccessLogFormat format = AccessLogFormat.DISPATCHER;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int runs = 3;
+        Path log = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--log-format":
+                    format = AccessLogFormat.forName(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    log = Paths.get(args[i]);
+                    break;
+            }
+        }
+        if (log == null) {
+            usage();
+            return;
+        }
+
+        Pattern ptrn = Pattern.compile("(.+) \"(.+)\" (.+) \\[(.+)\\] \"([A-Z]+) (.+) HTTP/1.1\" (\\d+) (.+) \"(.*?)\" \"(.*?)\"");
+        for (int run = 0; run <= runs; run++) {
+            // the first run warms up the JIT
+            String label = run == 0 ? "warmup " : "run " + run + " ";
+
+            long t0 = System.nanoTime();
+            long[] matched = {0};
+            for (String ln : Files.readAllLines(log)) {
+                Matcher m = ptrn.matcher(ln);
+                if (m.matches()) matched[0]++;
+            }
+            long regexNanos = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            long[] parsed = {0};
+            AccessLogReader reader = new AccessLogReader(format).withThreads(threads);
+            reader.read(log, e -> parsed[0]++);
+            long readerNanos = System.nanoTime() - t0;
+
+            System.out.println(label + String.format("regex: %d lines in %d ms (%.0f lines/s), reader with %d threads: %d lines in %d ms (%.0f lines/s), %.1fx",
+                    matched[0], regexNanos / 1000000, matched[0] * 1e9 / regexNanos,
+                    threads, parsed[0], readerNanos / 1000000, parsed[0] * 1e9 / readerNanos,
+                    (double) regexNanos / readerNanos));
+        }
+    }
+}
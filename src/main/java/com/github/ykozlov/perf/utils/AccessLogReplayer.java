@@ -1,16 +1,24 @@
 package com.github.ykozlov.perf.utils;
 
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.io.IOException;
 import java.nio.file.Paths;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.regex.Matcher;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Pattern;
 
 /**
@@ -23,11 +31,61 @@ public class AccessLogReplayer {
         System.err.println("Usage: com.github.ykozlov.perf.utils.AccessLogReplayer [options...] <file>");
         System.err.println("  --threads N                    Number of multiple requests to make at a time");
         System.err.println("  --base-url  url                Target url, e.g. https://we-retail.com");
-        System.err.println("  --warmup                       Warmup http client before execution");
-        System.err.println("  --random                       Randomly select lines from the input file");
+        System.err.println("  --http2                        Send requests over HTTP/2 (h2 or h2c), multiplexed over one connection per host");
+        System.err.println("  --http2-no-hostname-verification  Don't verify host names of TLS certificates in the HTTP/2 mode. Sets the JVM-wide");
+        System.err.println("                                 jdk.internal.httpclient.disableHostnameVerification property");
+        System.err.println("  --max-conn N                   Max. number of pooled connections, default is the number of threads");
+        System.err.println("  --max-conn-per-route N         Max. number of pooled connections per host, default is the number of threads");
+        System.err.println("  --validate-after ms            Validate connections idle longer than this before reuse, default is 2000");
+        System.err.println("  --keep-alive seconds           Max. time to keep idle connections, default is the server's Keep-Alive");
+        System.err.println("  --evict-idle seconds           Close connections idle longer than this in the background");
+        System.err.println("  --pool-interval seconds        How often to sample the connection pool stats, default is 10");
+        System.err.println("  --warmup                       Prime the caches with a concurrent pass over the distinct urls before the measured run,");
+        System.err.println("                                 reported in the cold sheets only, all other sheets and totals cover the measured run");
+        System.err.println("  --passes N                     Number of measured passes over the input, default is 1");
+        System.err.println("  --random                       Randomly select requests weighted by their frequency in the input file");
+        System.err.println("  --sessions                     Replay requests as client sessions (IP + User-Agent) keeping their order and think times");
+        System.err.println("  --session-gap minutes          Idle time that starts a new session, default is 30");
+        System.err.println("  --think-scale factor           Multiplier of the recorded think times, e.g. 0.5 to replay twice as fast, default is 1");
+        System.err.println("  --model file                   Sample requests from a saved workload model instead of a log file");
+        System.err.println("  --save-model file              Save the workload model of the input file for reuse with --model");
         System.err.println("  --minutes                      Minutes to max. to spend on benchmarking");
+        System.err.println("  --rate N                       Max. requests per second per host");
+        System.err.println("  --max-in-flight N              Max. number of queued and executing requests, default is 100 per thread");
+        System.err.println("  --no-rows                      Do not keep a row per request, the report only has the aggregated sheets");
+        System.err.println("  --max-p99 ms                   Guard rail: rolling p99 limit");
+        System.err.println("  --max-errors pct               Guard rail: rolling share of failed, 5xx and 429 responses");
+        System.err.println("  --max-5xx N                    Guard rail: max. number of 5xx responses within the window");
+        System.err.println("  --guard-window seconds         Rolling window of the guard rails, default is 30");
+        System.err.println("  --on-breach abort|throttle     Abort the run (default) or halve the rate when a guard rail is breached");
         System.err.println("  --top N                        Process top N entries from the input file");
-        System.err.println("  --dump                         Dump html responses in ./yyyy-mm-dd hh:mm directory");
+        System.err.println("  --dump                         Dump responses in ./yyyy-mm-dd.hh.mm directory, identical bodies are stored once");
+        System.err.println("                                 and manifest.tsv maps urls to the stored bodies");
+        System.err.println("  --dump-gzip                    Compress dumped responses");
+        System.err.println("  --verify file                  Hash response bodies and compare them with a baseline saved by --save-baseline");
+        System.err.println("  --save-baseline file           Save the body hashes of this run as a baseline for --verify");
+        System.err.println("  --volatile regex               Markup to strip before computing the normalized hash, in addition to the defaults");
+        System.err.println("  --saveAs file                  Save the report in the given file, default is access-replay.xlsx");
+        System.err.println("  --metrics-port N               Serve the run metrics in OpenMetrics format at http://localhost:N/metrics");
+        System.err.println("  --metrics-file file            Write the run metrics in OpenMetrics format to the file periodically");
+        System.err.println("  --metrics-interval seconds     How often to write the metrics file, default is 15");
+        System.err.println("  --jfr file                     Record the run with Flight Recorder (profile settings), including an event per request");
+        System.err.println("  --jfr-threshold ms             Only record request events that took at least this long, default is 0");
+        System.err.println("  --request-id header            Send a random id in the header and record it, see LatencyCorrelator");
+        System.err.println("  --revalidate fraction          Send this share (0 to 1) of GET requests to urls with a known ETag or Last-Modified");
+        System.err.println("                                 as conditional requests, 200 and 304 responses are reported separately");
+        System.err.println("  --validator-cache N            Max. number of urls to keep validators for, default is 10000");
+        System.err.println("  --accept-encoding codings      Accept-Encoding to send, e.g. 'gzip, deflate' or identity. Responses are decoded by");
+        System.err.println("                                 the agent and the wire bytes, decoded bytes and decode time are recorded");
+        System.err.println("  --template-rule regex=repl     Custom url template rule applied before the built-in normalization");
+        System.err.println("  --rewrite regex=repl           Rewrite request urls before sending, e.g. vanity urls. The first rule that changes a url wins");
+        System.err.println("                                 The rule is split at the first =, write = in the regex as \\=");
+        System.err.println("  --rewrite-file file            Read rewrite rules from a file, one regex<TAB>replacement per line");
+        System.err.println("  --stats file                   Save per-template statistics in a mergeable sidecar file");
+        System.err.println("  --from time, --to time         Only replay requests in the time range, e.g. --from '2019-05-01 10:00'");
+        System.err.println("                                 The log is indexed in a sidecar .idx file on first use");
+        System.err.println("                                 Parsed requests are kept in a sidecar .rtab file and memory-mapped on later runs");
+        System.err.println("  --log-format name|pattern      combined, dispatcher (default), cdn or an Apache LogFormat string");
     }
 
     public static void main(String[] args) throws Exception {
@@ -37,9 +95,40 @@ public class AccessLogReplayer {
         boolean random = false;
         int minutes = 0;
         boolean dump = false;
+        boolean dumpGzip = false;
         boolean warmup = false;
+        int passes = 1;
         int top = 0;
         String saveAs = "access-replay.xlsx";
+        UrlTemplates urlTemplates = new UrlTemplates();
+        String statsFile = null;
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        AccessLogFormat logFormat = AccessLogFormat.DISPATCHER;
+        String modelFile = null;
+        String saveModel = null;
+        boolean sessions = false;
+        long sessionGap = 30 * 60 * 1000L;
+        double thinkScale = 1;
+        ResponseVerifier verifier = null;
+        String verifyFile = null;
+        String saveBaseline = null;
+        int poolInterval = 10;
+        int maxInFlight = 0;
+        boolean recordRows = true;
+        double revalidate = 0;
+        int metricsPort = 0;
+        String metricsFile = null;
+        int metricsInterval = 15;
+        String jfrFile = null;
+        long jfrThreshold = 0;
+        int validatorCache = 10000;
+        long maxP99 = 0;
+        double maxErrors = 0;
+        long max5xx = 0;
+        int guardWindow = 30;
+        GuardRails.Action onBreach = GuardRails.Action.ABORT;
+        AEMAgent.Builder builder = new AEMAgent.Builder();
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "--threads":
@@ -48,12 +137,63 @@ public class AccessLogReplayer {
                 case "--base-url":
                     baseUrl = args[++i];
                     break;
+                case "--http2":
+                    builder.withHttp2(true);
+                    break;
+                case "--http2-no-hostname-verification":
+                    builder.withHttp2NoHostnameVerification(true);
+                    break;
+                case "--max-conn":
+                    builder.withMaxConnTotal(Integer.parseInt(args[++i]));
+                    break;
+                case "--max-conn-per-route":
+                    builder.withMaxConnPerRoute(Integer.parseInt(args[++i]));
+                    break;
+                case "--validate-after":
+                    builder.withValidateAfterInactivity(Integer.parseInt(args[++i]));
+                    break;
+                case "--keep-alive":
+                    builder.withKeepAlive(Long.parseLong(args[++i]) * 1000);
+                    break;
+                case "--evict-idle":
+                    builder.withEvictIdle(Integer.parseInt(args[++i]));
+                    break;
+                case "--pool-interval":
+                    poolInterval = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    builder.withRateLimit(Double.parseDouble(args[++i]));
+                    break;
+                case "--max-in-flight":
+                    maxInFlight = Integer.parseInt(args[++i]);
+                    break;
+                case "--no-rows":
+                    recordRows = false;
+                    break;
+                case "--max-p99":
+                    maxP99 = Long.parseLong(args[++i]);
+                    break;
+                case "--max-errors":
+                    maxErrors = Double.parseDouble(args[++i]);
+                    break;
+                case "--max-5xx":
+                    max5xx = Long.parseLong(args[++i]);
+                    break;
+                case "--guard-window":
+                    guardWindow = Integer.parseInt(args[++i]);
+                    break;
+                case "--on-breach":
+                    onBreach = GuardRails.Action.valueOf(args[++i].toUpperCase());
+                    break;
                 case "--random":
                     random = true;
                     break;
                 case "--warmup":
                     warmup = true;
                     break;
+                case "--passes":
+                    passes = Integer.parseInt(args[++i]);
+                    break;
                 case "--minutes":
                     minutes = Integer.parseInt(args[++i]);
                     break;
@@ -63,9 +203,91 @@ public class AccessLogReplayer {
                 case "--dump":
                     dump = true;
                     break;
+                case "--dump-gzip":
+                    dump = true;
+                    dumpGzip = true;
+                    break;
                 case "--saveAs":
                     saveAs = args[++i];
                     break;
+                case "--request-id":
+                    builder.withRequestId(args[++i]);
+                    break;
+                case "--revalidate":
+                    revalidate = Double.parseDouble(args[++i]);
+                    break;
+                case "--validator-cache":
+                    validatorCache = Integer.parseInt(args[++i]);
+                    break;
+                case "--metrics-port":
+                    metricsPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--metrics-file":
+                    metricsFile = args[++i];
+                    break;
+                case "--metrics-interval":
+                    metricsInterval = Integer.parseInt(args[++i]);
+                    break;
+                case "--jfr":
+                    jfrFile = args[++i];
+                    break;
+                case "--jfr-threshold":
+                    jfrThreshold = Long.parseLong(args[++i]);
+                    break;
+                case "--accept-encoding":
+                    builder.withAcceptEncoding(args[++i]);
+                    break;
+                case "--rewrite":
+                    builder.withRewriteRule(args[++i]);
+                    break;
+                case "--rewrite-file":
+                    for (Map.Entry<Pattern, String> e : UrlRewriter.readRules(new File(args[++i])).entrySet()) {
+                        builder.withRewritePattern(e.getKey(), e.getValue());
+                    }
+                    break;
+                case "--template-rule":
+                    urlTemplates.withRule(args[++i]);
+                    break;
+                case "--stats":
+                    statsFile = args[++i];
+                    break;
+                case "--from":
+                    from = LogIndex.parseTime(args[++i]);
+                    break;
+                case "--to":
+                    to = LogIndex.parseTime(args[++i]);
+                    break;
+                case "--log-format":
+                    logFormat = AccessLogFormat.forName(args[++i]);
+                    break;
+                case "--model":
+                    modelFile = args[++i];
+                    break;
+                case "--save-model":
+                    saveModel = args[++i];
+                    break;
+                case "--sessions":
+                    sessions = true;
+                    break;
+                case "--session-gap":
+                    sessionGap = Long.parseLong(args[++i]) * 60 * 1000;
+                    break;
+                case "--think-scale":
+                    thinkScale = Double.parseDouble(args[++i]);
+                    break;
+                case "--verify":
+                    verifyFile = args[++i];
+                    if (verifier == null) verifier = new ResponseVerifier();
+                    break;
+                case "--save-baseline":
+                    saveBaseline = args[++i];
+                    if (verifier == null) verifier = new ResponseVerifier();
+                    verifier.withRecording(true);
+                    break;
+                case "--volatile":
+                    if (verifier == null) verifier = new ResponseVerifier();
+                    verifier.withVolatilePattern(args[++i]);
+                    break;
                 default:
                     if (args[i].startsWith("-"))
                         throw new IllegalArgumentException("unknown input argument: " + args[i]);
@@ -75,58 +297,138 @@ public class AccessLogReplayer {
             }
         }
 
-        if (inputFile == null) {
+        if (inputFile == null && modelFile == null) {
             usage();
             return;
         }
+        if (sessions && (random || modelFile != null)) {
+            throw new IllegalArgumentException("--sessions replays the log in order and cannot be combined with --random or --model");
+        }
 
 
         File cwd = new File(".");
         long started = System.currentTimeMillis();
-        AEMAgent.Builder builder = new AEMAgent.Builder()
-                .withBaseUrl(baseUrl)
-                .withThreadCount(numThreads);
+        builder.withBaseUrl(baseUrl)
+                .withThreadCount(numThreads)
+                .withMaxInFlight(maxInFlight > 0 ? maxInFlight : numThreads * 100)
+                .withRevalidation(validatorCache, revalidate)
+                .withUrlTemplates(urlTemplates)
+                .withRecordRows(recordRows);
         if (dump) {
             File reportDir = new File(cwd, new SimpleDateFormat("yyyy-MM-dd.HH.mm").format(System.currentTimeMillis()));
             reportDir.mkdirs();
 
-            builder.dumpTo(reportDir);
+            builder.dumpTo(reportDir, dumpGzip);
         }
 
+        Recording recording = jfrFile == null ? null : startRecording(new File(cwd, jfrFile), jfrThreshold);
         AEMAgent agent = builder.build();
+        OpenMetricsExporter exporter = new OpenMetricsExporter(agent);
+        if (metricsPort > 0) exporter.serve(metricsPort);
+        if (metricsFile != null) exporter.writeTo(new File(metricsFile), metricsInterval);
+        if (verifier != null) {
+            if (verifyFile != null) verifier.load(new File(verifyFile));
+            agent.setVerifier(verifier);
+        }
 
-        Pattern ptrn = Pattern.compile("(.+) \"(.+)\" (.+) \\[(.+)\\] \"([A-Z]+) (.+) HTTP/1.1\" (\\d+) (.+) \"(.*?)\" \"(.*?)\"");
-
-        List<String> lines = Files.readAllLines(Paths.get(inputFile), Charset.defaultCharset());
-        int cnt = 0;
-        Random rnd = new Random();
-        for (int i = 1; i < lines.size(); i++) {
-
-            int idx = random ? rnd.nextInt(lines.size()) : i;
-            String ln = lines.get(idx);
-            Matcher m = ptrn.matcher(ln);
-            if(!m.matches()){
-                logger.warn("invalid common log entry: {}", ln);
-                continue;
+        RequestTable table = null;
+        WorkloadModel model = null;
+        if (modelFile != null) {
+            model = WorkloadModel.load(new File(modelFile));
+        } else {
+            table = RequestTable.open(Paths.get(inputFile), logFormat, from, to);
+            if (random || saveModel != null) {
+                model = new WorkloadModel.Builder().add(table).build();
             }
-
-            String method = m.group(5);
-            String path = m.group(6);
-            int responseCode = Integer.parseInt(m.group(7));
-            if("GET".equals(method) && responseCode == 200) {
-                agent.ajaxGet(path);
+            if (saveModel != null) {
+                model.save(new File(saveModel));
             }
+        }
 
-            if (top > 0 && ++cnt == top) break;
+        long deadline = minutes > 0 ? started + minutes * 60 * 1000L : Long.MAX_VALUE;
+        // the cold pass is the heaviest load of the run, it is guarded too
+        GuardRails guardRails = new GuardRails(guardWindow)
+                .withMaxP99(maxP99)
+                .withMaxErrorRate(maxErrors)
+                .withMax5xx(max5xx)
+                .withAction(onBreach);
+        if (guardRails.isEnabled()) guardRails.start(agent);
+        PhaseStats phases = null;
+        if (warmup) {
+            // the cold pass is guarded, but only kept in the phase stats, not in the requests sheet, the templates or
+            // the totals of the run
+            phases = new PhaseStats(urlTemplates);
+            agent.addListener(phases);
+            phases.start("cold");
+            agent.setRecordRows(false);
+            prime(agent, distinctUrls(table, model, top), deadline);
+            agent.setRecordRows(recordRows);
+            agent.resetStats();
+            guardRails.resetWindow();
+            phases.start("warm");
+        }
+        long measured = System.currentTimeMillis();
+
+        TemplateStats templateStats = new TemplateStats(urlTemplates);
+        agent.addListener(templateStats);
+        agent.getPoolMonitor().start(poolInterval);
+
+        int numJobs;
+        if (sessions) {
+            List<SessionReplay.Session> list = SessionReplay.group(table, sessionGap);
+            if (top > 0 && list.size() > top) list = list.subList(0, top);
+            SessionReplay replay = new SessionReplay(agent, thinkScale);
+            replay.start(list);
+            boolean completed = replay.await(remainingSeconds(deadline));
+            agent.shutdown(completed ? 0 : 1);
+            numJobs = replay.getNumRequests();
+        } else {
+            for (int pass = 0; pass < passes && System.currentTimeMillis() < deadline && !agent.isAborted(); pass++) {
+                if (passes > 1) logger.info("pass {} of {}", pass + 1, passes);
+                replay(agent, table, model, random, top, deadline);
+            }
+            agent.shutdown(remainingSeconds(deadline));
+            numJobs = agent.getNumProcessed();
+        }
+        guardRails.stop();
+        exporter.stop();
+        if (recording != null) {
+            recording.stop();
+            logger.info("flight recording saved as {}", recording.getDestination());
+        }
+        if (agent.isAborted()) {
+            logger.error("the run was aborted: {}", agent.getAbortReason());
+        }
+        saveReport(new File(cwd, saveAs).getPath(), agent, templateStats, guardRails.isEnabled() ? guardRails : null, phases);
+        if (statsFile != null) {
+            templateStats.save(new File(statsFile));
+        }
+        if (verifier != null) {
+            if (saveBaseline != null) verifier.save(new File(saveBaseline));
+            logger.info("verification: {} matched, {} matched after normalization, {} mismatched, {} not in the baseline",
+                    verifier.getCount(ResponseVerifier.Result.MATCH),
+                    verifier.getCount(ResponseVerifier.Result.NORMALIZED_MATCH),
+                    verifier.getCount(ResponseVerifier.Result.MISMATCH),
+                    verifier.getCount(ResponseVerifier.Result.NEW));
         }
-        agent.shutdown(minutes * 60);
-        agent.getReport().save(new File(cwd, saveAs).getPath());
         long finished = System.currentTimeMillis();
-        int numJobs = agent.getNumProcessed();
-        logger.info("{} jobs done in {} seconds, {} jobs/second, average: {} ms, {} KB downloaded",
-                numJobs, (finished - started) / 1000., String.format("%.2f", numJobs * 1000. / (finished - started)),
-                agent.getAverageTime(), agent.getBytesSent() / 1024
+        logger.info("{} jobs done in {} seconds, {} jobs/second, average: {} ms, {} KB downloaded, {} errors",
+                numJobs, (finished - measured) / 1000., String.format("%.2f", numJobs * 1000. / (finished - measured)),
+                agent.getAverageTime(), agent.getBytesSent() / 1024, agent.getNumErrors()
         );
+        Metrics metrics = agent.getMetrics();
+        logger.info("status: {} 2xx, {} 3xx, {} 4xx, {} 5xx, {} failed {}",
+                metrics.getStatusClassCount(2), metrics.getStatusClassCount(3), metrics.getStatusClassCount(4),
+                metrics.getStatusClassCount(5), metrics.getFailed(), metrics.getExceptionCounts());
+        if (metrics.getDecodedBytes() > 0) {
+            logger.info("{} KB on the wire, {} KB decoded, compression ratio {}, {} compressed responses decoded in {} ms",
+                    metrics.getWireBytes() / 1024, metrics.getDecodedBytes() / 1024,
+                    String.format("%.2f", metrics.getDecodedBytes() / (double) Math.max(1, metrics.getWireBytes())),
+                    metrics.getEncodedResponses(), metrics.getDecodeMillis());
+        }
+        PoolMonitor pool = agent.getPoolMonitor();
+        logger.info("{} connections opened, {} TLS handshakes, {}% of requests reused a connection",
+                pool.getConnectionsOpened(), pool.getHandshakes(), String.format("%.1f", pool.getReuseRatio()));
 
         int topN = Math.min(10, numJobs);
         System.err.println(topN + " longest requests, ms:");
@@ -137,4 +439,123 @@ public class AccessLogReplayer {
 
     }
 
+    /**
+     * start a recording with the profile settings and the request events, written to the file when stopped
+     */
+    static Recording startRecording(File file, long thresholdMillis) throws IOException, ParseException {
+        Recording recording = new Recording(Configuration.getConfiguration("profile"));
+        recording.setName("aem-agent");
+        recording.enable(RequestEvent.class).withThreshold(Duration.ofMillis(thresholdMillis));
+        recording.setToDisk(true);
+        recording.setDestination(file.toPath());
+        recording.start();
+        return recording;
+    }
+
+    /**
+     * @return seconds left till the deadline, at least 1, or 0 if there is no deadline
+     */
+    static int remainingSeconds(long deadline) {
+        if (deadline == Long.MAX_VALUE) return 0;
+        return (int) Math.max(1, (deadline - System.currentTimeMillis()) / 1000);
+    }
+
+    /**
+     * @return distinct GET urls of the table (successful requests only) or of the model, in order of appearance
+     */
+    static Collection<String> distinctUrls(RequestTable table, WorkloadModel model, int top) {
+        Set<String> urls = new LinkedHashSet<>();
+        if (table != null) {
+            int n = top > 0 ? Math.min(top, table.size()) : table.size();
+            for (int i = 0; i < n; i++) {
+                if ("GET".equals(table.getMethod(i)) && table.getStatus(i) == 200) urls.add(table.getPath(i));
+            }
+        } else {
+            for (int i = 0; i < model.size(); i++) {
+                if ("GET".equals(model.getMethod(i))) urls.add(model.getUrl(i));
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * request each url once, concurrently, and wait for the responses
+     */
+    static void prime(AEMAgent agent, Collection<String> urls, long deadline) throws InterruptedException {
+        logger.info("priming {} distinct urls", urls.size());
+        long t0 = System.currentTimeMillis();
+        try {
+            for (String url : urls) {
+                if (System.currentTimeMillis() >= deadline) break;
+                agent.send(url);
+            }
+        } catch (RejectedExecutionException e) {
+            if (!agent.isAborted()) throw e;
+        }
+        boolean completed = agent.awaitCompletion(remainingSeconds(deadline));
+        logger.info("priming {} in {} ms", completed ? "completed" : "stopped", System.currentTimeMillis() - t0);
+    }
+
+    /**
+     * Submit requests of the table in order or requests sampled from the workload model. Submission blocks while
+     * the in-flight limit of the agent is reached, so it stops at the deadline.
+     */
+    static void replay(AEMAgent agent, RequestTable table, WorkloadModel model, boolean random, int top, long deadline) {
+        int cnt = 0;
+        Random rnd = new Random();
+        boolean sample = model != null && (random || table == null);
+        long numRequests = sample ? model.getTotal() : table.size();
+        try {
+            for (long i = 0; i < numRequests; i++) {
+                if (System.currentTimeMillis() >= deadline) {
+                    logger.info("time is up, stopped submitting at entry {} of {}", i, numRequests);
+                    break;
+                }
+                if (sample) {
+                    int idx = model.sample(rnd);
+                    if ("GET".equals(model.getMethod(idx))) {
+                        agent.send(model.getUrl(idx));
+                    }
+                } else {
+                    String method = table.getMethod((int) i);
+                    String path = table.getPath((int) i);
+                    int responseCode = table.getStatus((int) i);
+                    if ("GET".equals(method) && responseCode == 200) {
+                        agent.send(path);
+                    }
+                }
+
+                if (top > 0 && ++cnt == top) break;
+            }
+        } catch (RejectedExecutionException e) {
+            // aborted by the guard rails while submitting
+            if (!agent.isAborted()) throw e;
+        }
+    }
+
+    static void saveReport(String fileName, AEMAgent agent, TemplateStats templateStats, GuardRails guardRails,
+                           PhaseStats phases) throws IOException, InterruptedException {
+        Report report = agent.getReport();
+        if (fileName.endsWith(".xlsx")) {
+            Map<String, Report> sheets = new LinkedHashMap<>();
+            sheets.put("requests", report);
+            sheets.put("templates", templateStats.toReport());
+            if (phases != null) {
+                sheets.put("phases", phases.toReport());
+                sheets.put("cold vs warm", phases.compare("cold", "warm"));
+                for (String phase : new String[]{"cold", "warm"}) {
+                    TemplateStats stats = phases.get(phase);
+                    if (stats != null) sheets.put(phase, stats.toReport());
+                }
+            }
+            sheets.put("metrics", agent.getMetrics().toReport());
+            sheets.put("pool", agent.getPoolMonitor().getReport());
+            if (guardRails != null) sheets.put("guard rails", guardRails.getReport());
+            if (agent.getValidatorCache() != null) sheets.put("revalidation", agent.getValidatorCache().toReport());
+            Report.save(fileName, sheets);
+        } else {
+            report.save(fileName);
+        }
+    }
+
 }
@@ -0,0 +1,633 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Predicts the dispatcher cache hit ratio for a given configuration by replaying an access log offline.
+ * <p>
+ * Each request is checked against the dispatcher rules of every configuration: cacheable methods and extensions,
+ * /ignoreUrlParams, TTL, statfile invalidation and a size-bounded LRU or LFU cache. The log is parsed once and all
+ * configurations are simulated in the same pass, so a sweep over many configurations costs about as much as one.
+ * <p>
+ * Invalidation requests found in the log (<code>/dispatcher/invalidate.cache</code> by default) touch the statfiles
+ * of the CQ-Handle path if the log format captures the header, otherwise they invalidate the whole cache.
+ */
+public class DispatcherCacheSimulator {
+    private static final Logger logger = LoggerFactory.getLogger(DispatcherCacheSimulator.class);
+
+    /**
+     * Dispatcher rules of a simulated configuration, parsed from <code>key=value;key=value</code>
+     */
+    public static class Config {
+        String name = "default";
+        String policy = "lru";
+        long maxBytes = 0;
+        long ttl = 0;
+        Set<String> methods = new HashSet<>(Arrays.asList("GET", "HEAD"));
+        Set<String> extensions = new HashSet<>(Arrays.asList(
+                "html", "json", "js", "css", "png", "jpg", "jpeg", "gif", "svg", "webp", "ico",
+                "woff", "woff2", "ttf", "txt", "xml", "pdf"));
+        Set<String> autoInvalidate = new HashSet<>(Arrays.asList("html"));
+        List<Pattern> ignoreUrlParams = new ArrayList<>();
+        int statfilesLevel = 0;
+        private final Map<String, Boolean> ignoredParams = new HashMap<>();
+
+        public static Config parse(String spec) {
+            Config cfg = new Config();
+            for (String pair : spec.split(";")) {
+                pair = pair.trim();
+                if (pair.isEmpty()) continue;
+                int eq = pair.indexOf('=');
+                if (eq < 0) throw new IllegalArgumentException("expected key=value: " + pair);
+                String key = pair.substring(0, eq).trim();
+                String value = pair.substring(eq + 1).trim();
+                switch (key) {
+                    case "name":
+                        cfg.name = value;
+                        break;
+                    case "policy":
+                        if (!value.equals("lru") && !value.equals("lfu")) {
+                            throw new IllegalArgumentException("policy must be lru or lfu: " + value);
+                        }
+                        cfg.policy = value;
+                        break;
+                    case "size":
+                        cfg.maxBytes = parseSize(value);
+                        break;
+                    case "ttl":
+                        cfg.ttl = parseDuration(value);
+                        break;
+                    case "methods":
+                        cfg.methods = split(value.toUpperCase());
+                        break;
+                    case "extensions":
+                        cfg.extensions = split(value);
+                        break;
+                    case "invalidate":
+                        cfg.autoInvalidate = split(value);
+                        break;
+                    case "ignoreUrlParams":
+                        cfg.ignoreUrlParams.clear();
+                        cfg.ignoredParams.clear();
+                        for (String glob : split(value)) {
+                            cfg.ignoreUrlParams.add(globToPattern(glob));
+                        }
+                        break;
+                    case "statfileslevel":
+                        cfg.statfilesLevel = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown config key: " + key);
+                }
+            }
+            return cfg;
+        }
+
+        /**
+         * @return the cache key or null if the dispatcher would not cache the request
+         */
+        String cacheKey(String method, String path, String query, String extension) {
+            if (!methods.contains(method) || extension == null || !extensions.contains(extension)) {
+                return null;
+            }
+            if (query != null) {
+                if (ignoreUrlParams.isEmpty()) return null;
+                int start = 0;
+                while (start < query.length()) {
+                    int amp = query.indexOf('&', start);
+                    if (amp < 0) amp = query.length();
+                    int eq = query.indexOf('=', start);
+                    int end = eq < 0 || eq > amp ? amp : eq;
+                    if (end > start && !isIgnored(query.substring(start, end))) return null;
+                    start = amp + 1;
+                }
+            }
+            return path;
+        }
+
+        boolean isIgnored(String param) {
+            Boolean ignored = ignoredParams.get(param);
+            if (ignored == null) {
+                ignored = false;
+                for (Pattern p : ignoreUrlParams) {
+                    if (p.matcher(param).matches()) {
+                        ignored = true;
+                        break;
+                    }
+                }
+                // parameter names are few, but do not let junk in the logs grow the memo without bound
+                if (ignoredParams.size() < 10000) ignoredParams.put(param, ignored);
+            }
+            return ignored;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": policy=" + policy + ", size=" + (maxBytes == 0 ? "unbounded" : maxBytes)
+                    + ", ttl=" + (ttl == 0 ? "none" : ttl / 1000 + "s") + ", ignoreUrlParams=" + ignoreUrlParams
+                    + ", statfileslevel=" + statfilesLevel;
+        }
+
+        /**
+         * @return pattern matching the glob of the dispatcher, * is any text and ? any character, the rest is literal
+         */
+        static Pattern globToPattern(String glob) {
+            StringBuilder re = new StringBuilder();
+            int start = 0;
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c != '*' && c != '?') continue;
+                if (i > start) re.append(Pattern.quote(glob.substring(start, i)));
+                re.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+            if (start < glob.length()) re.append(Pattern.quote(glob.substring(start)));
+            return Pattern.compile(re.toString());
+        }
+
+        private static Set<String> split(String value) {
+            Set<String> set = new HashSet<>();
+            for (String s : value.split(",")) {
+                if (!s.trim().isEmpty()) set.add(s.trim());
+            }
+            return set;
+        }
+    }
+
+    static class CachedFile {
+        final String key;
+        final long bytes;
+        final long cachedAt;
+        int frequency = 1;
+
+        CachedFile(String key, long bytes, long cachedAt) {
+            this.key = key;
+            this.bytes = bytes;
+            this.cachedAt = cachedAt;
+        }
+    }
+
+    /**
+     * Size-bounded cache, maxBytes=0 means unbounded
+     */
+    static abstract class Cache {
+        final long maxBytes;
+        long size;
+        long evictions;
+
+        Cache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        abstract CachedFile get(String key);
+
+        abstract void remove(CachedFile file);
+
+        abstract void add(CachedFile file);
+
+        abstract CachedFile victim();
+
+        abstract int count();
+
+        void put(CachedFile file) {
+            if (maxBytes > 0 && file.bytes > maxBytes) return;
+            while (maxBytes > 0 && size + file.bytes > maxBytes) {
+                remove(victim());
+                evictions++;
+            }
+            add(file);
+        }
+    }
+
+    static class LruFileCache extends Cache {
+        private final LinkedHashMap<String, CachedFile> map = new LinkedHashMap<>(1024, 0.75f, true);
+
+        LruFileCache(long maxBytes) {
+            super(maxBytes);
+        }
+
+        CachedFile get(String key) {
+            return map.get(key);
+        }
+
+        void remove(CachedFile file) {
+            map.remove(file.key);
+            size -= file.bytes;
+        }
+
+        void add(CachedFile file) {
+            CachedFile prev = map.put(file.key, file);
+            if (prev != null) size -= prev.bytes;
+            size += file.bytes;
+        }
+
+        CachedFile victim() {
+            return map.values().iterator().next();
+        }
+
+        int count() {
+            return map.size();
+        }
+    }
+
+    /**
+     * LFU with O(1) updates: files are grouped by frequency, ties are broken by insertion order
+     */
+    static class LfuCache extends Cache {
+        private final HashMap<String, CachedFile> map = new HashMap<>(1024);
+        private final HashMap<Integer, LinkedHashSet<CachedFile>> buckets = new HashMap<>();
+        private int minFrequency = 1;
+
+        LfuCache(long maxBytes) {
+            super(maxBytes);
+        }
+
+        CachedFile get(String key) {
+            CachedFile file = map.get(key);
+            if (file != null) {
+                LinkedHashSet<CachedFile> bucket = buckets.get(file.frequency);
+                bucket.remove(file);
+                if (bucket.isEmpty()) {
+                    buckets.remove(file.frequency);
+                    if (minFrequency == file.frequency) minFrequency++;
+                }
+                file.frequency++;
+                buckets.computeIfAbsent(file.frequency, f -> new LinkedHashSet<>()).add(file);
+            }
+            return file;
+        }
+
+        void remove(CachedFile file) {
+            map.remove(file.key);
+            LinkedHashSet<CachedFile> bucket = buckets.get(file.frequency);
+            bucket.remove(file);
+            if (bucket.isEmpty()) buckets.remove(file.frequency);
+            size -= file.bytes;
+        }
+
+        void add(CachedFile file) {
+            CachedFile prev = map.get(file.key);
+            if (prev != null) remove(prev);
+            map.put(file.key, file);
+            buckets.computeIfAbsent(file.frequency, f -> new LinkedHashSet<>()).add(file);
+            minFrequency = Math.min(minFrequency, file.frequency);
+            size += file.bytes;
+        }
+
+        CachedFile victim() {
+            LinkedHashSet<CachedFile> bucket;
+            while ((bucket = buckets.get(minFrequency)) == null) {
+                minFrequency++;
+            }
+            return bucket.iterator().next();
+        }
+
+        int count() {
+            return map.size();
+        }
+    }
+
+    /**
+     * Counters of a configuration: total and per minute
+     */
+    static class Simulation {
+        static final int REQUESTS = 0, HITS = 1, ORIGIN = 2, BYTES_SAVED = 3, ORIGIN_BYTES = 4;
+
+        final Config config;
+        final Cache cache;
+        final Map<String, Long> statfiles = new HashMap<>();
+        final TreeMap<Long, long[]> minutes = new TreeMap<>();
+        long requests, cacheable, hits, expired, stale, invalidations;
+        long originRequests, bytesSaved, originBytes;
+        private long currentMinute = Long.MIN_VALUE;
+        private long[] current;
+
+        Simulation(Config config) {
+            this.config = config;
+            this.cache = config.policy.equals("lfu") ? new LfuCache(config.maxBytes) : new LruFileCache(config.maxBytes);
+        }
+
+        void request(AccessLogEntry entry, String path, String query, String extension) {
+            long ts = entry.getTimestamp();
+            String key = config.cacheKey(entry.getMethod(), path, query, extension);
+            int status = entry.getStatus();
+            boolean hit = false;
+            if (key != null && (status == 200 || status == 304)) {
+                cacheable++;
+                CachedFile file = cache.get(key);
+                if (file != null && config.ttl > 0 && ts >= 0 && ts - file.cachedAt >= config.ttl) {
+                    expired++;
+                    cache.remove(file);
+                    file = null;
+                }
+                if (file != null && config.autoInvalidate.contains(extension) && isStale(path, file.cachedAt)) {
+                    stale++;
+                    cache.remove(file);
+                    file = null;
+                }
+                if (file != null) {
+                    hit = true;
+                } else if (status == 200) {
+                    cache.put(new CachedFile(key, entry.getBytes(), ts));
+                }
+            }
+
+            long[] counters = minute(ts);
+            requests++;
+            counters[REQUESTS]++;
+            if (hit) {
+                hits++;
+                bytesSaved += entry.getBytes();
+                counters[HITS]++;
+                counters[BYTES_SAVED] += entry.getBytes();
+            } else {
+                originRequests++;
+                originBytes += entry.getBytes();
+                counters[ORIGIN]++;
+                counters[ORIGIN_BYTES] += entry.getBytes();
+            }
+        }
+
+        /**
+         * touch the statfiles from the docroot down to statfileslevel along the handle
+         */
+        void invalidate(String handle, long ts) {
+            invalidations++;
+            int depth = Math.min(config.statfilesLevel, folderDepth(handle));
+            for (int level = 0; level <= depth; level++) {
+                statfiles.put(folder(handle, level), ts);
+            }
+        }
+
+        boolean isStale(String path, long cachedAt) {
+            Long touched = statfiles.get(folder(path, Math.min(config.statfilesLevel, folderDepth(path))));
+            return touched != null && touched >= cachedAt;
+        }
+
+        private long[] minute(long ts) {
+            long minute = ts < 0 ? 0 : ts / 60000 * 60000;
+            if (minute != currentMinute) {
+                currentMinute = minute;
+                current = minutes.computeIfAbsent(minute, m -> new long[5]);
+            }
+            return current;
+        }
+    }
+
+    /**
+     * @return number of folders above the file, e.g. 2 for /content/site/page.html
+     */
+    static int folderDepth(String path) {
+        int depth = 0;
+        for (int i = 1; i < path.length(); i++) {
+            if (path.charAt(i) == '/') depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * @return the folder at the given level, "/" for level 0, "/content" for level 1 and so on
+     */
+    static String folder(String path, int level) {
+        if (level == 0) return "/";
+        int idx = 0;
+        for (int i = 0; i < level; i++) {
+            int next = path.indexOf('/', idx + 1);
+            if (next < 0) return path;
+            idx = next;
+        }
+        return path.substring(0, idx);
+    }
+
+    /**
+     * @return extension of the last path segment or null, e.g. "html" for /content/page.sel.html
+     */
+    static String extension(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/')) return null;
+        return path.substring(dot + 1);
+    }
+
+    static long parseSize(String value) {
+        String v = value.trim().toLowerCase();
+        long multiplier = 1;
+        switch (v.charAt(v.length() - 1)) {
+            case 'k':
+                multiplier = 1024L;
+                break;
+            case 'm':
+                multiplier = 1024L * 1024;
+                break;
+            case 'g':
+                multiplier = 1024L * 1024 * 1024;
+                break;
+        }
+        if (multiplier > 1) v = v.substring(0, v.length() - 1);
+        return (long) (Double.parseDouble(v) * multiplier);
+    }
+
+    /**
+     * @return millis, the value is in seconds unless it ends with s, m, h or d
+     */
+    static long parseDuration(String value) {
+        String v = value.trim().toLowerCase();
+        long multiplier = 1000;
+        switch (v.charAt(v.length() - 1)) {
+            case 's':
+                break;
+            case 'm':
+                multiplier = 60 * 1000L;
+                break;
+            case 'h':
+                multiplier = 3600 * 1000L;
+                break;
+            case 'd':
+                multiplier = 24 * 3600 * 1000L;
+                break;
+            default:
+                return (long) (Double.parseDouble(v) * multiplier);
+        }
+        return (long) (Double.parseDouble(v.substring(0, v.length() - 1)) * multiplier);
+    }
+
+    static Report summaryReport(List<Simulation> simulations, long seconds) {
+        Report report = new Report();
+        report.setColumns(new String[]{"Config", "Policy", "Size", "TTL", "Requests", "Cacheable", "Hits",
+                "Hit Ratio %", "Cacheable Hit Ratio %", "Expired", "Invalidated", "Evictions", "Cached Files",
+                "Origin Requests", "Origin Req/s", "Bytes Saved", "Origin Bytes"});
+        for (Simulation sim : simulations) {
+            Config cfg = sim.config;
+            Report.Row row = report.createRow();
+            row.setValue(0, cfg.name);
+            row.setValue(1, cfg.policy);
+            row.setValue(2, cfg.maxBytes == 0 ? "unbounded" : String.valueOf(cfg.maxBytes));
+            row.setValue(3, cfg.ttl == 0 ? "none" : cfg.ttl / 1000 + "s");
+            row.setValue(4, sim.requests);
+            row.setValue(5, sim.cacheable);
+            row.setValue(6, sim.hits);
+            row.setValue(7, String.format("%.2f", sim.requests == 0 ? 0. : sim.hits * 100. / sim.requests));
+            row.setValue(8, String.format("%.2f", sim.cacheable == 0 ? 0. : sim.hits * 100. / sim.cacheable));
+            row.setValue(9, sim.expired);
+            row.setValue(10, sim.stale);
+            row.setValue(11, sim.cache.evictions);
+            row.setValue(12, sim.cache.count());
+            row.setValue(13, sim.originRequests);
+            row.setValue(14, String.format("%.2f", seconds == 0 ? 0. : (double) sim.originRequests / seconds));
+            row.setValue(15, sim.bytesSaved);
+            row.setValue(16, sim.originBytes);
+        }
+        return report;
+    }
+
+    /**
+     * one row per minute with hit ratio, origin request rate and bytes saved of each configuration
+     */
+    static Report timelineReport(List<Simulation> simulations) {
+        Report report = new Report();
+        List<String> columns = new ArrayList<>();
+        columns.add("Minute");
+        columns.add("Requests");
+        for (Simulation sim : simulations) {
+            columns.add(sim.config.name + " Hit %");
+            columns.add(sim.config.name + " Origin Req/s");
+            columns.add(sim.config.name + " Bytes Saved");
+        }
+        report.setColumns(columns.toArray(new String[0]));
+        for (long minute : simulations.get(0).minutes.keySet()) {
+            Report.Row row = report.createRow();
+            row.setValue(0, new Date(minute));
+            int col = 1;
+            for (Simulation sim : simulations) {
+                long[] c = sim.minutes.get(minute);
+                if (col == 1) row.setValue(col++, c[Simulation.REQUESTS]);
+                row.setValue(col++, String.format("%.2f", c[Simulation.HITS] * 100. / c[Simulation.REQUESTS]));
+                row.setValue(col++, String.format("%.2f", c[Simulation.ORIGIN] / 60.));
+                row.setValue(col++, c[Simulation.BYTES_SAVED]);
+            }
+        }
+        return report;
+    }
+
+    static void usage() {
+        System.err.println("Usage: com.github.ykozlov.perf.utils.DispatcherCacheSimulator [options...] <file>...");
+        System.err.println("  --config spec                  Dispatcher configuration to simulate, can be repeated to compare several, e.g.");
+        System.err.println("                                 'name=lru1g;policy=lru;size=1g;ttl=1h;ignoreUrlParams=utm_*,gclid;statfileslevel=2'");
+        System.err.println("                                 keys: name, policy (lru|lfu), size (0 = unbounded), ttl (0 = none),");
+        System.err.println("                                 methods, extensions, invalidate (auto-invalidated extensions),");
+        System.err.println("                                 ignoreUrlParams (globs), statfileslevel");
+        System.err.println("  --invalidate-path regex        Requests treated as cache invalidation, default is ^/dispatcher/invalidate\\.cache");
+        System.err.println("  --from time, --to time         Only simulate requests in the time range, e.g. --from '2019-05-01 10:00'");
+        System.err.println("  --log-format name|pattern      combined, dispatcher (default), cdn or an Apache LogFormat string");
+        System.err.println("  --saveAs file                  Save the report in the given file, default is cache-simulation.xlsx");
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> paths = new ArrayList<>();
+        List<Simulation> simulations = new ArrayList<>();
+        Pattern invalidatePath = Pattern.compile("^/dispatcher/invalidate\\.cache");
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        AccessLogFormat format = AccessLogFormat.DISPATCHER;
+        String saveAs = "cache-simulation.xlsx";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--config":
+                    simulations.add(new Simulation(Config.parse(args[++i])));
+                    break;
+                case "--invalidate-path":
+                    invalidatePath = Pattern.compile(args[++i]);
+                    break;
+                case "--from":
+                    from = LogIndex.parseTime(args[++i]);
+                    break;
+                case "--to":
+                    to = LogIndex.parseTime(args[++i]);
+                    break;
+                case "--log-format":
+                    format = AccessLogFormat.forName(args[++i]);
+                    break;
+                case "--saveAs":
+                    saveAs = args[++i];
+                    break;
+                default:
+                    if (args[i].startsWith("-"))
+                        throw new IllegalArgumentException("unknown input argument: " + args[i]);
+
+                    paths.add(args[i]);
+                    break;
+            }
+        }
+        if (paths.isEmpty()) {
+            usage();
+            return;
+        }
+        if (simulations.isEmpty()) {
+            simulations.add(new Simulation(new Config()));
+        }
+        for (Simulation sim : simulations) {
+            logger.info("simulating {}", sim.config);
+        }
+
+        Pattern invalidate = invalidatePath;
+        long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+        long started = System.currentTimeMillis();
+        AccessLogReader reader = new AccessLogReader(format).withTimeRange(from, to);
+        for (String arg : paths) {
+            reader.read(Paths.get(arg), entry -> {
+                String url = entry.getPath();
+                long ts = entry.getTimestamp();
+                if (ts >= 0) {
+                    range[0] = Math.min(range[0], ts);
+                    range[1] = Math.max(range[1], ts);
+                }
+                if (invalidate.matcher(url).find()) {
+                    String handle = entry.getField("CQ-Handle");
+                    if (handle == null || handle.isEmpty() || handle.equals("-")) handle = "/";
+                    for (Simulation sim : simulations) {
+                        sim.invalidate(handle, ts);
+                    }
+                    return;
+                }
+                int idx = url.indexOf('?');
+                String path = idx < 0 ? url : url.substring(0, idx);
+                String query = idx < 0 ? null : url.substring(idx + 1);
+                String extension = extension(path);
+                for (Simulation sim : simulations) {
+                    sim.request(entry, path, query, extension);
+                }
+            });
+        }
+        long elapsed = System.currentTimeMillis() - started;
+        logger.info("{} lines processed in {} ms ({} lines/min), {} invalid",
+                reader.getNumLines(), elapsed, elapsed == 0 ? "-" : reader.getNumLines() * 60000 / elapsed,
+                reader.getNumInvalid());
+
+        long seconds = range[1] > range[0] ? (range[1] - range[0]) / 1000 + 1 : 0;
+        for (Simulation sim : simulations) {
+            System.out.println(String.format("%s\thit ratio %.2f%%\torigin requests %d (%.2f/s)\tbytes saved %d",
+                    sim.config.name, sim.requests == 0 ? 0. : sim.hits * 100. / sim.requests,
+                    sim.originRequests, seconds == 0 ? 0. : (double) sim.originRequests / seconds, sim.bytesSaved));
+        }
+
+        Map<String, Report> sheets = new LinkedHashMap<>();
+        sheets.put("summary", summaryReport(simulations, seconds));
+        sheets.put("timeline", timelineReport(simulations));
+        Report.save(saveAs, sheets);
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes response bodies to disk on a background thread.
+ * <p>
+ * Request threads only offer the body to a bounded queue; when the queue is full the body is dropped and counted
+ * rather than slowing down the test. Bodies are stored by content hash under <code>objects/</code>, so identical
+ * responses are written once, optionally gzipped. <code>manifest.tsv</code> maps each url to its hash and size.
+ */
+public class DumpWriter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DumpWriter.class);
+
+    private static final Item EOF = new Item(null, null);
+
+    static class Item {
+        final String url;
+        final String body;
+
+        Item(String url, String body) {
+            this.url = url;
+            this.body = body;
+        }
+    }
+
+    private final File dir;
+    private final boolean gzip;
+    private final BlockingQueue<Item> queue;
+    private final Set<String> written = new HashSet<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+    private long numObjects;
+    private long numDuplicates;
+    private volatile IOException error;
+
+    public DumpWriter(File dir, boolean gzip, int capacity) {
+        this.dir = dir;
+        this.gzip = gzip;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::run, "dump-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * queue a body for writing, never blocks
+     *
+     * @return false if the queue is full and the body was dropped
+     */
+    public boolean offer(String url, String body) {
+        if (error == null && queue.offer(new Item(url, body))) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void run() {
+        File manifest = new File(dir, "manifest.tsv");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifest, true), StandardCharsets.UTF_8))) {
+            Item item;
+            while ((item = queue.take()) != EOF) {
+                byte[] bytes = item.body.getBytes(StandardCharsets.UTF_8);
+                String hash = hash(bytes);
+                if (written.add(hash)) {
+                    if (write(hash, bytes)) numObjects++;
+                    else numDuplicates++;
+                } else {
+                    numDuplicates++;
+                }
+                out.write(item.url + "\t" + hash + "\t" + bytes.length + "\n");
+                if (queue.isEmpty()) out.flush();
+            }
+        } catch (IOException e) {
+            logger.error("cannot write dump to {}, dumping is disabled", dir, e);
+            error = e;
+            queue.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return false if the object already exists, e.g. from an earlier run
+     */
+    private boolean write(String hash, byte[] bytes) throws IOException {
+        File file = objectFile(hash);
+        if (file.exists()) return false;
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (OutputStream os = gzip ? new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16) : new FileOutputStream(tmp)) {
+            os.write(bytes);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * @return the file of the object with the given content hash, objects/ab/abcdef...[.gz]
+     */
+    public File objectFile(String hash) {
+        return new File(dir, "objects/" + hash.substring(0, 2) + "/" + hash + (gzip ? ".gz" : ""));
+    }
+
+    static String hash(byte[] bytes) {
+        MessageDigest digest = ResponseVerifier.newDigest();
+        return ResponseVerifier.toHex(digest.digest(bytes));
+    }
+
+    /**
+     * write the remaining queued bodies and stop the writer thread
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (thread.isAlive()) {
+                queue.put(EOF);
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("dump: {} objects written, {} duplicates, {} dropped, manifest in {}",
+                numObjects, numDuplicates, dropped.get(), new File(dir, "manifest.tsv"));
+        if (error != null) throw error;
+    }
+}
@@ -0,0 +1,233 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops or slows down a run when the target degrades.
+ * <p>
+ * Completed requests are recorded in a ring of one-second slots, each with its own latency sketch and counters.
+ * Once a second the slots of the rolling window are merged and checked against the limits: p99, error rate
+ * (failed requests, 5xx and 429) and the number of 5xx responses. On a breach the run is either aborted or the
+ * per-host rate limit of the agent is halved, at most once per window so the effect of the previous
+ * step can be seen. Each breach is recorded in the "guard rails" report.
+ */
+public class GuardRails implements AEMAgent.RequestListener {
+    private static final Logger logger = LoggerFactory.getLogger(GuardRails.class);
+
+    public static final String[] COLUMNS = {
+            "Timestamp", "Requests", "Requests/s", "p99", "Error %", "5xx", "Reason", "Action"};
+
+    public enum Action {
+        ABORT, THROTTLE
+    }
+
+    static class Slot {
+        long second = -1;
+        long count;
+        long errors;
+        long serverErrors;
+        QuantileSketch sketch = new QuantileSketch();
+
+        void reset(long second) {
+            this.second = second;
+            count = 0;
+            errors = 0;
+            serverErrors = 0;
+            sketch = new QuantileSketch();
+        }
+    }
+
+    private final Slot[] slots;
+    private final int windowSeconds;
+    private final Report report = new Report();
+    private long maxP99;
+    private double maxErrorRate;
+    private long max5xx;
+    private int minRequests = 50;
+    private double minRate = 1;
+    private Action action = Action.ABORT;
+    private AEMAgent agent;
+    private ScheduledExecutorService checker;
+    private long lastThrottle;
+    private int numBreaches;
+
+    public GuardRails(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+        this.slots = new Slot[windowSeconds + 1];
+        for (int i = 0; i < slots.length; i++) slots[i] = new Slot();
+        report.setColumns(COLUMNS);
+        report.setColumnWidth(0, 20 * 254);
+        report.setColumnWidth(6, 40 * 254);
+    }
+
+    /**
+     * @param millis max. p99 over the window, 0 for no limit
+     */
+    public GuardRails withMaxP99(long millis) {
+        this.maxP99 = millis;
+        return this;
+    }
+
+    /**
+     * @param percent max. share of failed, 5xx and 429 responses over the window, 0 for no limit
+     */
+    public GuardRails withMaxErrorRate(double percent) {
+        this.maxErrorRate = percent;
+        return this;
+    }
+
+    /**
+     * @param count max. number of 5xx responses within the window, 0 for no limit
+     */
+    public GuardRails withMax5xx(long count) {
+        this.max5xx = count;
+        return this;
+    }
+
+    /**
+     * @param count p99 and error rate are not checked until the window has this many requests
+     */
+    public GuardRails withMinRequests(int count) {
+        this.minRequests = count;
+        return this;
+    }
+
+    public GuardRails withAction(Action action) {
+        this.action = action;
+        return this;
+    }
+
+    /**
+     * @param rate throttling never goes below this many requests per second per host
+     */
+    public GuardRails withMinRate(double rate) {
+        this.minRate = rate;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return maxP99 > 0 || maxErrorRate > 0 || max5xx > 0;
+    }
+
+    public int getNumBreaches() {
+        return numBreaches;
+    }
+
+    @Override
+    public void completed(String method, String url, int statusCode, long elapsed, long bytes) {
+        long second = System.currentTimeMillis() / 1000;
+        Slot slot = slots[(int) (second % slots.length)];
+        synchronized (slot) {
+            if (slot.second != second) slot.reset(second);
+            slot.count++;
+            slot.sketch.add(elapsed);
+            if (CapacitySearch.isError(statusCode)) slot.errors++;
+            if (statusCode >= 500) slot.serverErrors++;
+        }
+    }
+
+    /**
+     * check the limits every second until {@link #stop()}
+     */
+    public synchronized void start(AEMAgent agent) {
+        if (checker != null) return;
+        this.agent = agent;
+        agent.addListener(this);
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "guard-rails");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleAtFixedRate(this::check, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * forget the requests recorded so far, e.g. of a warmup, breaches already reported are kept
+     */
+    public void resetWindow() {
+        for (Slot slot : slots) {
+            synchronized (slot) {
+                slot.reset(-1);
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        if (checker != null) {
+            checker.shutdownNow();
+            checker = null;
+        }
+    }
+
+    synchronized void check() {
+        if (agent.isAborted()) return;
+
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        long count = 0;
+        long errors = 0;
+        long serverErrors = 0;
+        QuantileSketch sketch = new QuantileSketch();
+        for (Slot slot : slots) {
+            synchronized (slot) {
+                // the current, partial second is included
+                if (slot.second > second - windowSeconds && slot.second <= second) {
+                    count += slot.count;
+                    errors += slot.errors;
+                    serverErrors += slot.serverErrors;
+                    sketch.merge(slot.sketch);
+                }
+            }
+        }
+        double p99 = count == 0 ? 0 : sketch.quantile(0.99);
+        double errorRate = count == 0 ? 0 : errors * 100. / count;
+
+        String reason = null;
+        if (max5xx > 0 && serverErrors > max5xx) {
+            reason = serverErrors + " 5xx responses in " + windowSeconds + " s, limit is " + max5xx;
+        } else if (count >= minRequests && maxErrorRate > 0 && errorRate > maxErrorRate) {
+            reason = String.format("error rate %.2f%%, limit is %s%%", errorRate, maxErrorRate);
+        } else if (count >= minRequests && maxP99 > 0 && p99 > maxP99) {
+            reason = "p99 " + Math.round(p99) + " ms, limit is " + maxP99 + " ms";
+        }
+        if (reason == null) return;
+        // give the previous throttling step a full window to take effect
+        if (action == Action.THROTTLE && now - lastThrottle < windowSeconds * 1000L) return;
+
+        numBreaches++;
+        double throughput = count / (double) windowSeconds;
+        Report.Row row = report.createRow();
+        row.setValue(0, new Date(now));
+        row.setCellStyle(0, Report.STYLE_DATETIME);
+        row.setValue(1, count);
+        row.setValue(2, String.format("%.1f", throughput));
+        row.setValue(3, Math.round(p99));
+        row.setValue(4, String.format("%.2f", errorRate));
+        row.setValue(5, serverErrors);
+        row.setValue(6, reason);
+        row.setRowStyle(Report.STYLE_BAD);
+        if (action == Action.ABORT) {
+            row.setValue(7, "abort");
+            agent.abort("guard rail breached: " + reason);
+            stop();
+        } else {
+            RateLimiter limiter = agent.getRateLimiter();
+            double rate = limiter.getRate() > 0 ? limiter.getRate() : throughput;
+            rate = Math.max(minRate, rate / 2);
+            limiter.setRate(rate);
+            lastThrottle = now;
+            row.setValue(7, String.format("throttle to %.1f req/s per host", rate));
+            logger.warn("guard rail breached: {}, throttling to {} req/s per host", reason, String.format("%.1f", rate));
+        }
+    }
+
+    public Report getReport() {
+        return report;
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.ykozlov.perf.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog distinct-count estimator.
+ * <p>
+ * Uses 2^precision one-byte registers regardless of how many values are added, the standard error is
+ * about 1.04 / sqrt(2^precision), e.g. 1.6% for precision 12 (4 KB). Sketches with the same precision can be merged.
+ */
+public class HyperLogLog {
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision must be in [4, 18]: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public void add(String value) {
+        addHash(hash(value));
+    }
+
+    public void addHash(long hash) {
+        int idx = (int) (hash >>> (64 - precision));
+        // rank of the first 1-bit in the remaining bits, the sentinel bit limits it to 64 - precision + 1
+        long w = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (rank > registers[idx]) registers[idx] = rank;
+    }
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) zeros++;
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // small range correction: linear counting
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("cannot merge sketches with different precision: " + precision + " and " + other.precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) registers[i] = other.registers[i];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(registers, (byte) 0);
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes followed by the murmur3 finalizer to spread the bits
+     */
+    public static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,448 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the latency measured by the load generator into the time spent in Sling and the time spent outside of it:
+ * network and dispatcher.
+ * <p>
+ * The results of a replay (the "requests" sheet or a tab-delimited report) are loaded into a column-wise table and
+ * joined with the server logs, which are streamed line by line, so only the client side is kept in memory:
+ * <ul>
+ * <li>dispatcher / Apache access logs are joined by the request id when the agent sent one
+ * (<code>--request-id</code> of the replayer) and the log format echoes the header, e.g. <code>%{X-Request-Id}i</code>.
+ * <code>%D</code> gives the dispatcher time.</li>
+ * <li>request.log has no request headers, its requests are joined by method and path with the client request
+ * closest in time within the allowed clock skew. Both sides are mostly in time order, so a cursor per path skips
+ * the requests that are too old to match.</li>
+ * </ul>
+ */
+public class LatencyCorrelator {
+    private static final Logger logger = LoggerFactory.getLogger(LatencyCorrelator.class);
+
+    public static final String[] COLUMNS = {
+            "Timestamp", "Request Id", "Method", "Path", "Status", "Client", "Dispatcher", "Sling",
+            "Outside Sling", "Network", "Dispatcher Overhead"};
+
+    private int size;
+    private long[] timestamps = new long[1024];
+    private int[] clientMillis = new int[1024];
+    private short[] statuses = new short[1024];
+    private String[] methods = new String[1024];
+    private String[] paths = new String[1024];
+    private String[] ids = new String[1024];
+    private long[] dispatcherMicros;
+    private int[] slingMillis;
+    private final Map<String, Integer> byId = new HashMap<>();
+    private Map<String, Candidates> byPath;
+    private long numDispatcherLines;
+    private long numDispatcherMatched;
+    private long numSlingRequests;
+    private long numSlingMatched;
+
+    /**
+     * Client requests with the same method and path in time order
+     */
+    static class Candidates {
+        int[] rows = new int[4];
+        int size;
+        int cursor;
+
+        void add(int row) {
+            if (size == rows.length) rows = Arrays.copyOf(rows, size * 2);
+            rows[size++] = row;
+        }
+    }
+
+    void add(long timestamp, String id, String method, String path, int status, int millis) {
+        if (size == timestamps.length) {
+            int capacity = size * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            clientMillis = Arrays.copyOf(clientMillis, capacity);
+            statuses = Arrays.copyOf(statuses, capacity);
+            methods = Arrays.copyOf(methods, capacity);
+            paths = Arrays.copyOf(paths, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+        }
+        timestamps[size] = timestamp;
+        ids[size] = id;
+        methods[size] = method == null ? "GET" : method.intern();
+        paths[size] = path;
+        statuses[size] = (short) status;
+        clientMillis[size] = millis;
+        if (id != null) byId.put(id, size);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * load the results of a replay: the "requests" sheet of an .xlsx report or a tab-delimited report.
+     * The file is streamed with {@link Report#stream(File, String, Report.RowHandler)}, only the columns used for
+     * the correlation are kept.
+     */
+    public void load(File file) throws IOException {
+        int[][] cols = new int[1][];
+        Report.stream(file, file.getName().endsWith(".xlsx") ? "requests" : null, (columns, row) -> {
+            if (cols[0] == null) cols[0] = columnIndexes(columns);
+            add(parseTimestamp(row.getValue(cols[0][0])), row.getValue(cols[0][1]), cols[0], row::getValue);
+        });
+        dispatcherMicros = new long[size];
+        slingMillis = new int[size];
+        Arrays.fill(dispatcherMicros, -1);
+        Arrays.fill(slingMillis, -1);
+        logger.info("{} client requests loaded from {}, {} with a request id", size, file, byId.size());
+    }
+
+    interface CellReader {
+        String get(int column);
+    }
+
+    private void add(long ts, String path, int[] cols, CellReader cells) {
+        if (ts < 0 || path == null) return;
+        int millis = (int) parseNumber(cells.get(cols[4]));
+        if (millis < 0) return;
+        add(ts, cells.get(cols[5]), cells.get(cols[2]), UrlTemplates.stripHost(unwrapHyperlink(path)),
+                (int) parseNumber(cells.get(cols[3])), millis);
+    }
+
+    /**
+     * @return indexes of Timestamp, Path, Method, Status, Total Time and Request Id, -1 for a missing optional column
+     */
+    static int[] columnIndexes(String[] header) {
+        List<String> names = Arrays.asList(header);
+        int[] cols = {names.indexOf("Timestamp"), names.indexOf("Path"), names.indexOf("Method"),
+                names.indexOf("Status"), names.indexOf("Total Time"), names.indexOf("Request Id")};
+        if (cols[0] < 0 || cols[1] < 0 || cols[4] < 0) {
+            throw new IllegalArgumentException("not a replay report, expected Timestamp, Path and Total Time columns: " + names);
+        }
+        return cols;
+    }
+
+    static String unwrapHyperlink(String value) {
+        if (value.startsWith("=")) value = value.substring(1);
+        if (value.startsWith("HYPERLINK(\"")) {
+            int end = value.indexOf('"', 11);
+            return end < 0 ? value.substring(11) : value.substring(11, end);
+        }
+        return value;
+    }
+
+    static long parseNumber(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static long parseTimestamp(String value) {
+        if (value == null) return -1;
+        if (value.startsWith("{DateTime}")) value = value.substring(10);
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(value).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * join the access log of a dispatcher that echoes the request id header
+     */
+    public void joinDispatcherLog(File log, AccessLogFormat format, String idHeader) throws IOException {
+        AccessLogReader reader = new AccessLogReader(format);
+        reader.read(log.toPath(), e -> {
+            numDispatcherLines++;
+            String id = e.getField(idHeader);
+            Integer row = id == null ? null : byId.get(id);
+            if (row != null) {
+                dispatcherMicros[row] = Math.max(0, e.getTimeTaken());
+                numDispatcherMatched++;
+            }
+        });
+        logger.info("{} of {} dispatcher requests matched by {}", numDispatcherMatched, numDispatcherLines, idHeader);
+    }
+
+    /**
+     * join an AEM request.log by method and path with the client request closest in time
+     *
+     * @param maxSkewMillis max. difference of the client and the server start time
+     */
+    public void joinRequestLog(File log, long maxSkewMillis) throws IOException {
+        if (byPath == null) {
+            byPath = new HashMap<>();
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Long.compare(timestamps[a], timestamps[b]));
+            for (int i : order) byPath.computeIfAbsent(methods[i] + " " + paths[i], k -> new Candidates()).add(i);
+        }
+        RequestLogAnalyzer.Pairer pairer = new RequestLogAnalyzer.Pairer(100000);
+        RequestLogAnalyzer.DateCache dates = new RequestLogAnalyzer.DateCache();
+        try (BufferedReader reader = Files.newBufferedReader(log.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                RequestLogAnalyzer.Request r = pairer.pair(line);
+                if (r == null) continue;
+                numSlingRequests++;
+                Candidates candidates = byPath.get(r.method + " " + r.path);
+                if (candidates == null) continue;
+                long started;
+                try {
+                    started = dates.parse(r.timeStarted);
+                } catch (ParseException e) {
+                    continue;
+                }
+                int row = match(candidates, started, maxSkewMillis);
+                if (row >= 0) {
+                    slingMillis[row] = (int) r.elapsed;
+                    numSlingMatched++;
+                }
+            }
+        }
+        logger.info("{} of {} request.log requests matched by method, path and time", numSlingMatched, numSlingRequests);
+    }
+
+    /**
+     * @return the unmatched candidate closest to the given time within the skew or -1
+     */
+    private int match(Candidates c, long time, long maxSkewMillis) {
+        while (c.cursor < c.size && (timestamps[c.rows[c.cursor]] < time - maxSkewMillis || slingMillis[c.rows[c.cursor]] >= 0)) {
+            c.cursor++;
+        }
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = c.cursor; i < c.size; i++) {
+            int row = c.rows[i];
+            long distance = Math.abs(timestamps[row] - time);
+            if (timestamps[row] > time + maxSkewMillis) break;
+            if (slingMillis[row] < 0 && distance < bestDistance) {
+                best = row;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Latency components of matched requests
+     */
+    static class Component {
+        final String name;
+        final QuantileSketch sketch = new QuantileSketch();
+        double sum;
+
+        Component(String name) {
+            this.name = name;
+        }
+
+        void add(long value) {
+            // negative values are clock or rounding artifacts
+            long v = Math.max(0, value);
+            sketch.add(v);
+            sum += v;
+        }
+    }
+
+    /**
+     * @param maxRows max. number of rows in the requests sheet
+     * @return summary, templates and requests sheets
+     */
+    public Map<String, Report> toReport(UrlTemplates templates, int maxRows) {
+        Component client = new Component("Client");
+        Component dispatcher = new Component("Dispatcher");
+        Component sling = new Component("Sling");
+        Component outside = new Component("Outside Sling");
+        Component network = new Component("Network");
+        Component overhead = new Component("Dispatcher Overhead");
+        Map<String, long[]> byTemplate = new HashMap<>();
+
+        Report requests = new Report();
+        requests.setColumns(COLUMNS);
+        requests.setColumnWidth(0, 20 * 254);
+        requests.setColumnWidth(1, 38 * 254);
+        requests.setColumnWidth(3, 70 * 254);
+        for (int i = 0; i < size; i++) {
+            long d = dispatcherMicros[i] < 0 ? -1 : dispatcherMicros[i] / 1000;
+            long s = slingMillis[i];
+            client.add(clientMillis[i]);
+            if (d >= 0) {
+                dispatcher.add(d);
+                network.add(clientMillis[i] - d);
+            }
+            if (s >= 0) {
+                sling.add(s);
+                outside.add(clientMillis[i] - s);
+                if (d >= 0) overhead.add(d - s);
+            }
+            long[] t = byTemplate.computeIfAbsent(templates.normalize(paths[i]), k -> new long[4]);
+            t[0]++;
+            if (s >= 0) {
+                t[1]++;
+                t[2] += clientMillis[i];
+                t[3] += s;
+            }
+
+            if (requests.size() < maxRows) {
+                Report.Row row = requests.createRow();
+                row.setValue(0, new Date(timestamps[i]));
+                row.setCellStyle(0, Report.STYLE_DATETIME);
+                if (ids[i] != null) row.setValue(1, ids[i]);
+                row.setValue(2, methods[i]);
+                row.setValue(3, paths[i]);
+                row.setValue(4, statuses[i]);
+                row.setValue(5, clientMillis[i]);
+                if (d >= 0) {
+                    row.setValue(6, d);
+                    row.setValue(9, clientMillis[i] - d);
+                }
+                if (s >= 0) {
+                    row.setValue(7, s);
+                    row.setValue(8, clientMillis[i] - s);
+                    if (d >= 0) row.setValue(10, d - s);
+                }
+            }
+        }
+
+        Report summary = new Report();
+        summary.setColumns(new String[]{"Component", "Requests", "Mean", "p50", "p90", "p99", "Max", "% of Client"});
+        summary.setColumnWidth(0, 25 * 254);
+        for (Component c : Arrays.asList(client, dispatcher, sling, outside, network, overhead)) {
+            long n = c.sketch.getCount();
+            Report.Row row = summary.createRow();
+            row.setValue(0, c.name);
+            row.setValue(1, n);
+            if (n == 0) continue;
+            row.setValue(2, Math.round(c.sum / n));
+            row.setValue(3, Math.round(c.sketch.quantile(0.5)));
+            row.setValue(4, Math.round(c.sketch.quantile(0.9)));
+            row.setValue(5, Math.round(c.sketch.quantile(0.99)));
+            row.setValue(6, Math.round(c.sketch.getMax()));
+            if (client.sum > 0 && c != client) {
+                // share of the mean client time of the same requests
+                double clientMean = client.sum / client.sketch.getCount();
+                row.setValue(7, String.format("%.1f", c.sum / n * 100 / clientMean));
+            }
+        }
+
+        Report templateReport = new Report();
+        templateReport.setColumns(new String[]{"Template", "Requests", "Matched", "Client Mean", "Sling Mean",
+                "Outside Sling Mean", "Sling %"});
+        templateReport.setColumnWidth(0, 70 * 254);
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(byTemplate.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        for (Map.Entry<String, long[]> e : entries) {
+            long[] t = e.getValue();
+            Report.Row row = templateReport.createRow();
+            row.setValue(0, e.getKey());
+            row.setValue(1, t[0]);
+            row.setValue(2, t[1]);
+            if (t[1] == 0) continue;
+            row.setValue(3, Math.round((double) t[2] / t[1]));
+            row.setValue(4, Math.round((double) t[3] / t[1]));
+            row.setValue(5, Math.round((double) (t[2] - t[3]) / t[1]));
+            row.setValue(6, String.format("%.1f", t[2] == 0 ? 0 : t[3] * 100. / t[2]));
+        }
+
+        Map<String, Report> sheets = new LinkedHashMap<>();
+        sheets.put("summary", summary);
+        sheets.put("templates", templateReport);
+        sheets.put("requests", requests);
+        return sheets;
+    }
+
+    static void usage() {
+        System.err.println("Usage: com.github.ykozlov.perf.utils.LatencyCorrelator [options...] <replay report>");
+        System.err.println("  --dispatcher-log file          Dispatcher access log that echoes the request id header, e.g. %{X-Request-Id}i");
+        System.err.println("  --log-format name|pattern      Format of the dispatcher log, should contain %D and the request id header");
+        System.err.println("                                 default is the dispatcher format followed by %D \"%{<id header>}i\"");
+        System.err.println("  --id-header name               Request id header, default is X-Request-Id");
+        System.err.println("  --request-log file             AEM request.log, requests are matched by method, path and start time");
+        System.err.println("  --max-skew seconds             Max. clock difference between the load generator and the server, default is 5");
+        System.err.println("  --template-rule regex=repl     Custom url template rule applied before the built-in normalization");
+        System.err.println("  --rows N                       Max. rows in the requests sheet, default is 100000");
+        System.err.println("  --saveAs file                  Save the report in the given file, default is latency-breakdown.xlsx");
+    }
+
+    public static void main(String[] args) throws Exception {
+        String inputFile = null;
+        List<String> dispatcherLogs = new ArrayList<>();
+        List<String> requestLogs = new ArrayList<>();
+        AccessLogFormat logFormat = null;
+        String idHeader = "X-Request-Id";
+        long maxSkew = 5000;
+        int maxRows = 100000;
+        String saveAs = "latency-breakdown.xlsx";
+        UrlTemplates urlTemplates = new UrlTemplates();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dispatcher-log":
+                    dispatcherLogs.add(args[++i]);
+                    break;
+                case "--log-format":
+                    logFormat = AccessLogFormat.forName(args[++i]);
+                    break;
+                case "--id-header":
+                    idHeader = args[++i];
+                    break;
+                case "--request-log":
+                    requestLogs.add(args[++i]);
+                    break;
+                case "--max-skew":
+                    maxSkew = Long.parseLong(args[++i]) * 1000;
+                    break;
+                case "--template-rule":
+                    urlTemplates.withRule(args[++i]);
+                    break;
+                case "--rows":
+                    maxRows = Integer.parseInt(args[++i]);
+                    break;
+                case "--saveAs":
+                    saveAs = args[++i];
+                    break;
+                default:
+                    if (args[i].startsWith("-"))
+                        throw new IllegalArgumentException("unknown input argument: " + args[i]);
+
+                    inputFile = args[i];
+                    break;
+            }
+        }
+        if (inputFile == null || (dispatcherLogs.isEmpty() && requestLogs.isEmpty())) {
+            usage();
+            return;
+        }
+        if (logFormat == null) {
+            logFormat = new AccessLogFormat(AccessLogFormat.DISPATCHER.getPattern() + " %D \"%{" + idHeader + "}i\"");
+        }
+
+        LatencyCorrelator correlator = new LatencyCorrelator();
+        correlator.load(new File(inputFile));
+        for (String log : dispatcherLogs) {
+            correlator.joinDispatcherLog(new File(log), logFormat, idHeader);
+        }
+        for (String log : requestLogs) {
+            correlator.joinRequestLog(new File(log), maxSkew);
+        }
+        Report.save(saveAs, correlator.toReport(urlTemplates, maxRows));
+        logger.info("report saved in {}", saveAs);
+    }
+}
@@ -0,0 +1,411 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sidecar time index for request.log and access logs.
+ * <p>
+ * The index is stored next to the log as <code>&lt;log&gt;.idx</code> and maps timestamp buckets (one minute by default)
+ * to the byte offset of the first line and the end of the last line stamped within the bucket. A time range
+ * can then be read by seeking straight to the relevant bytes instead of scanning the whole file.
+ * The index is built on first use and extended incrementally when the log grows; it is rebuilt if the log was rotated.
+ * <p>
+ * Both the request.log format (<code>dd/MMM/yyyy:HH:mm:ss Z</code> at the start of the line) and
+ * the access log format (the same timestamp in square brackets) are recognized.
+ */
+public class LogIndex {
+    private static final Logger logger = LoggerFactory.getLogger(LogIndex.class);
+
+    private static final int MAGIC = 0x4c494458; // LIDX
+    private static final int VERSION = 1;
+    private static final int HEAD_LENGTH = 4096;
+    private static final String[] MONTHS = {
+            "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    private final Path log;
+    private final int bucketSeconds;
+    // bucket start, epoch seconds -> {offset of the first line, end offset of the last line}
+    private final TreeMap<Long, long[]> buckets = new TreeMap<>();
+    private long indexedLength;
+    private long headHash;
+
+    public interface LineHandler {
+        void handle(String line) throws IOException;
+    }
+
+    static void usage() {
+        System.err.println("Usage: com.github.ykozlov.perf.utils.LogIndex [options...] <file>...");
+        System.err.println("  --bucket seconds               Size of a time bucket, default is 60");
+    }
+
+    public static void main(String[] args) throws IOException {
+        int bucketSeconds = 60;
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--bucket":
+                    bucketSeconds = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    paths.add(Paths.get(args[i]));
+                    break;
+            }
+        }
+        if (paths.isEmpty()) {
+            usage();
+            return;
+        }
+        for (Path path : paths) {
+            LogIndex index = open(path, bucketSeconds);
+            System.out.println(path + ": " + index.buckets.size() + " buckets"
+                    + (index.buckets.isEmpty() ? "" : ", " + new Date(index.buckets.firstKey() * 1000)
+                    + " - " + new Date(index.buckets.lastKey() * 1000)));
+        }
+    }
+
+    private LogIndex(Path log, int bucketSeconds) {
+        this.log = log;
+        this.bucketSeconds = bucketSeconds;
+    }
+
+    public static Path indexPath(Path log) {
+        return log.resolveSibling(log.getFileName() + ".idx");
+    }
+
+    public static LogIndex open(Path log) throws IOException {
+        return open(log, 60);
+    }
+
+    /**
+     * load the sidecar index of the log, building or extending it as necessary
+     */
+    public static LogIndex open(Path log, int bucketSeconds) throws IOException {
+        LogIndex index = new LogIndex(log, bucketSeconds);
+        Path idx = indexPath(log);
+        long length = Files.size(log);
+        long head = headHash(log);
+        boolean valid = Files.exists(idx) && index.load(idx) && index.headHash == head && index.indexedLength <= length;
+        if (!valid) {
+            index.buckets.clear();
+            index.indexedLength = 0;
+            index.headHash = head;
+        }
+        if (index.indexedLength < length) {
+            long t0 = System.currentTimeMillis();
+            long from = index.indexedLength;
+            index.scan();
+            logger.info("indexed {} bytes of {} in {} ms", index.indexedLength - from, log, System.currentTimeMillis() - t0);
+            try {
+                index.save(idx);
+            } catch (IOException e) {
+                logger.warn("cannot save {}: {}", idx, e.getMessage());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Read lines with timestamps in [from, to). Lines without a timestamp are passed through if they are
+     * located between the first and the last line of the range.
+     *
+     * @param from epoch millis or 0 to read from the beginning
+     * @param to   epoch millis or Long.MAX_VALUE to read till the end
+     */
+    public void forEachLine(long from, long to, LineHandler handler) throws IOException {
+        long[] range = byteRange(from, to);
+        if (range[0] >= range[1]) return;
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            channel.position(range[0]);
+            InputStream is = new LimitedInputStream(Channels.newInputStream(channel), range[1] - range[0]);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1 << 16)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    long ts = parseTimestamp(line);
+                    if (ts == -1 || (ts >= from && ts < to)) {
+                        handler.handle(line);
+                    }
+                }
+            }
+        }
+    }
+
+    public List<String> readLines(long from, long to) throws IOException {
+        List<String> lines = new ArrayList<>();
+        forEachLine(from, to, lines::add);
+        return lines;
+    }
+
+    /**
+     * read lines of the time range, using the sidecar index if a range is given
+     */
+    public static List<String> readLines(Path log, long from, long to) throws IOException {
+        if (from <= 0 && to == Long.MAX_VALUE) {
+            return Files.readAllLines(log);
+        }
+        return open(log).readLines(from, to);
+    }
+
+    /**
+     * @return {start, end} byte offsets covering all lines stamped within [from, to)
+     */
+    long[] byteRange(long from, long to) {
+        long fromBucket = Math.floorDiv(from / 1000, bucketSeconds) * bucketSeconds;
+        long toSec = to == Long.MAX_VALUE ? Long.MAX_VALUE : (to - 1) / 1000;
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (Map.Entry<Long, long[]> e : buckets.tailMap(fromBucket, true).entrySet()) {
+            if (e.getKey() > toSec) break;
+            start = Math.min(start, e.getValue()[0]);
+            end = Math.max(end, e.getValue()[1]);
+        }
+        return new long[]{start == Long.MAX_VALUE ? 0 : start, end};
+    }
+
+    private void scan() throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            byte[] arr = buffer.array();
+            long position = indexedLength;
+            long lineStart = position;
+            int carry = 0;
+            int n;
+            while ((n = channel.read(buffer, position)) > 0) {
+                position += n;
+                int limit = carry + n;
+                int start = 0;
+                for (int i = 0; i < limit; i++) {
+                    if (arr[i] == '\n') {
+                        long ts = parseTimestamp(arr, start, i);
+                        long lineEnd = lineStart + (i - start) + 1;
+                        if (ts != -1) {
+                            long bucket = Math.floorDiv(ts / 1000, bucketSeconds) * bucketSeconds;
+                            long[] offsets = buckets.get(bucket);
+                            if (offsets == null) buckets.put(bucket, new long[]{lineStart, lineEnd});
+                            else offsets[1] = Math.max(offsets[1], lineEnd);
+                        }
+                        lineStart = lineEnd;
+                        start = i + 1;
+                    }
+                }
+                carry = limit - start;
+                if (carry == arr.length) {
+                    // a single line longer than the buffer, skip it
+                    lineStart += carry;
+                    carry = 0;
+                }
+                System.arraycopy(arr, start, arr, 0, carry);
+                buffer.clear();
+                buffer.position(carry);
+            }
+            // the trailing partial line is indexed when the log grows
+            indexedLength = lineStart;
+        }
+    }
+
+    private boolean load(Path idx) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx.toFile())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != bucketSeconds) {
+                return false;
+            }
+            indexedLength = in.readLong();
+            headHash = in.readLong();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                buckets.put(in.readLong(), new long[]{in.readLong(), in.readLong()});
+            }
+            return true;
+        }
+    }
+
+    private void save(Path idx) throws IOException {
+        Path tmp = idx.resolveSibling(idx.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bucketSeconds);
+            out.writeLong(indexedLength);
+            out.writeLong(headHash);
+            out.writeInt(buckets.size());
+            for (Map.Entry<Long, long[]> e : buckets.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue()[0]);
+                out.writeLong(e.getValue()[1]);
+            }
+        }
+        Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * hash of the first bytes of the log, a rotated log has a different head
+     */
+    static long headHash(Path log) throws IOException {
+        byte[] head = new byte[HEAD_LENGTH];
+        int len;
+        try (InputStream is = new FileInputStream(log.toFile())) {
+            len = is.readNBytes(head, 0, head.length);
+        }
+        long h = 1125899906842597L;
+        for (int i = 0; i < len; i++) h = 31 * h + head[i];
+        return h;
+    }
+
+    /**
+     * Parse a time range bound: <code>yyyy-MM-dd HH:mm[:ss]</code> (also with 'T' instead of space) in the local
+     * time zone or the log format <code>dd/MMM/yyyy:HH:mm:ss Z</code>
+     *
+     * @return epoch millis
+     */
+    public static long parseTime(String value) {
+        String[] formats = {"yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "dd/MMM/yyyy:HH:mm:ss Z"};
+        String str = value.replace('T', ' ');
+        for (String format : formats) {
+            try {
+                SimpleDateFormat df = new SimpleDateFormat(format, Locale.US);
+                df.setLenient(false);
+                return df.parse(str).getTime();
+            } catch (ParseException e) {
+                // try the next one
+            }
+        }
+        throw new IllegalArgumentException("invalid time: " + value + ", expected yyyy-MM-dd HH:mm[:ss]");
+    }
+
+    /**
+     * @return epoch millis of the request.log or access log timestamp or -1 if the line has none
+     */
+    public static long parseTimestamp(String line) {
+        int start = timestampStart(line);
+        return start < 0 ? -1 : parseDate(line, start);
+    }
+
+    /**
+     * parse <code>dd/MMM/yyyy:HH:mm:ss +zzzz</code> starting at the given position
+     *
+     * @return epoch millis or -1 if the string has no valid timestamp at this position
+     */
+    static long parseDate(String str, int pos) {
+        if (pos < 0 || str.length() < pos + 26) return -1;
+        byte[] buf = new byte[26];
+        for (int i = 0; i < 26; i++) buf[i] = (byte) str.charAt(pos + i);
+        return parseDate(buf, 0);
+    }
+
+    static long parseTimestamp(byte[] buf, int start, int end) {
+        int pos = -1;
+        if (isDate(buf, start, end)) {
+            pos = start;
+        } else {
+            for (int i = start; i < end; i++) {
+                if (buf[i] == '[') {
+                    if (isDate(buf, i + 1, end)) pos = i + 1;
+                    break;
+                }
+            }
+        }
+        return pos < 0 ? -1 : parseDate(buf, pos);
+    }
+
+    private static int timestampStart(String line) {
+        if (line.length() >= 26 && line.charAt(2) == '/' && line.charAt(6) == '/') return 0;
+        int idx = line.indexOf('[');
+        return idx >= 0 && line.length() >= idx + 27 && line.charAt(idx + 3) == '/' && line.charAt(idx + 7) == '/' ? idx + 1 : -1;
+    }
+
+    private static boolean isDate(byte[] buf, int pos, int end) {
+        return end - pos >= 26 && buf[pos + 2] == '/' && buf[pos + 6] == '/' && buf[pos + 11] == ':';
+    }
+
+    /**
+     * parse dd/MMM/yyyy:HH:mm:ss +zzzz without allocating
+     */
+    private static long parseDate(byte[] b, int p) {
+        try {
+            int day = digits(b, p, 2);
+            int month = -1;
+            for (int m = 0; m < 12; m++) {
+                String name = MONTHS[m];
+                if (b[p + 3] == name.charAt(0) && b[p + 4] == name.charAt(1) && b[p + 5] == name.charAt(2)) {
+                    month = m + 1;
+                    break;
+                }
+            }
+            if (month == -1) return -1;
+            int year = digits(b, p + 7, 4);
+            int hour = digits(b, p + 12, 2);
+            int minute = digits(b, p + 15, 2);
+            int second = digits(b, p + 18, 2);
+            int tz = digits(b, p + 22, 2) * 3600 + digits(b, p + 24, 2) * 60;
+            if (b[p + 21] == '-') tz = -tz;
+            long epochDay = LocalDate.of(year, month, day).toEpochDay();
+            return (epochDay * 86400 + hour * 3600 + minute * 60 + second - tz) * 1000;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static int digits(byte[] b, int p, int n) {
+        int v = 0;
+        for (int i = 0; i < n; i++) {
+            int d = b[p + i] - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException();
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = super.read();
+            if (b != -1) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+    }
+}
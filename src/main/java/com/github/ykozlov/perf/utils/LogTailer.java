@@ -0,0 +1,137 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Incrementally reads lines appended to a growing log file, like <code>tail -F</code>.
+ * <p>
+ * Each call to {@link #poll(Consumer)} returns only the complete lines written since the previous call,
+ * a trailing partial line is kept until its line break arrives. Rotation is detected when the file is
+ * replaced (different file key) or truncated: the rest of the old file is drained and reading continues
+ * from the beginning of the new one.
+ */
+public class LogTailer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(LogTailer.class);
+
+    private final Path path;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+    private FileChannel channel;
+    private Object fileKey;
+    private long position;
+
+    /**
+     * @param fromEnd whether to skip the current content of the file and only read lines appended later
+     */
+    public LogTailer(Path path, boolean fromEnd) throws IOException {
+        this.path = path;
+        open();
+        if (fromEnd && channel != null) {
+            position = channel.size();
+        }
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * read all complete lines available since the last call
+     *
+     * @return number of lines passed to the handler
+     */
+    public int poll(Consumer<String> handler) throws IOException {
+        if (channel == null) {
+            open();
+            if (channel == null) return 0;
+        }
+        int lines = drain(handler);
+
+        if (isRotated()) {
+            logger.info("{} was rotated", path);
+            lines += drain(handler);
+            if (partial.size() > 0) {
+                handler.accept(new String(partial.toByteArray(), StandardCharsets.UTF_8));
+                partial.reset();
+                lines++;
+            }
+            channel.close();
+            channel = null;
+            open();
+            if (channel != null) lines += drain(handler);
+        }
+        return lines;
+    }
+
+    private int drain(Consumer<String> handler) throws IOException {
+        int lines = 0;
+        int n;
+        while ((n = channel.read(buffer, position)) > 0) {
+            position += n;
+            buffer.flip();
+            byte[] arr = buffer.array();
+            int start = 0;
+            int limit = buffer.limit();
+            for (int i = 0; i < limit; i++) {
+                if (arr[i] == '\n') {
+                    int end = i > start && arr[i - 1] == '\r' ? i - 1 : i;
+                    String line;
+                    if (partial.size() > 0) {
+                        partial.write(arr, start, end - start);
+                        line = new String(partial.toByteArray(), StandardCharsets.UTF_8);
+                        partial.reset();
+                    } else {
+                        line = new String(arr, start, end - start, StandardCharsets.UTF_8);
+                    }
+                    handler.accept(line);
+                    lines++;
+                    start = i + 1;
+                }
+            }
+            partial.write(arr, start, limit - start);
+            buffer.clear();
+        }
+        return lines;
+    }
+
+    private boolean isRotated() throws IOException {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            Object key = attrs.fileKey();
+            return (key != null && !Objects.equals(key, fileKey)) || attrs.size() < position;
+        } catch (NoSuchFileException e) {
+            // rotated away and the new file has not been created yet
+            return false;
+        }
+    }
+
+    private void open() throws IOException {
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            position = 0;
+        } catch (NoSuchFileException e) {
+            channel = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+}
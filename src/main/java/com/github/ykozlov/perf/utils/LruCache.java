@@ -0,0 +1,76 @@
+package com.github.ykozlov.perf.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least recently used cache shared by request threads.
+ * <p>
+ * Keys are spread by hash over 16 segments, each an access-ordered {@link LinkedHashMap} under its own lock that
+ * evicts its least recently used entry when full, so threads rarely contend and the total size never exceeds
+ * the capacity.
+ */
+public class LruCache<K, V> {
+    private static final int SEGMENTS = 16;
+
+    static class Segment<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Segment<K, V>[] segments;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LruCache(int capacity) {
+        int perSegment = Math.max(1, capacity / SEGMENTS);
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment<>(perSegment);
+    }
+
+    private Segment<K, V> segment(Object key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    public V get(K key) {
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public void put(K key, V value) {
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    public void remove(K key) {
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public int size() {
+        int n = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                n += segment.size();
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,288 @@
+package com.github.ykozlov.perf.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters of an {@link AEMAgent}.
+ * <p>
+ * Request threads only increment {@link LongAdder}s, which are striped across cells under contention, so
+ * recording never blocks and no update is lost. Counters keyed by status code are preallocated, counters keyed
+ * by method or exception type are created on first use. Readers sum the cells, a snapshot taken while
+ * requests complete is consistent per counter but not across counters.
+ */
+public class Metrics {
+    static final String[] STATUS_CLASSES = {"failed", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    /**
+     * Latency histogram with fixed bucket bounds, a value is counted in the first bucket whose bound it does not
+     * exceed. Counts are per bucket, not cumulative.
+     */
+    public static class Histogram {
+        public static final long[] BOUNDS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) bucket.reset();
+            sum.reset();
+        }
+
+        void record(long millis) {
+            int i = 0;
+            while (i < BOUNDS.length && millis > BOUNDS[i]) i++;
+            buckets[i].increment();
+            sum.add(millis);
+        }
+
+        /**
+         * @return counts of the buckets of {@link #BOUNDS} followed by the count above the last bound
+         */
+        public long[] getCounts() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < counts.length; i++) counts[i] = buckets[i].sum();
+            return counts;
+        }
+
+        /**
+         * @return sum of the recorded values, ms
+         */
+        public long getSum() {
+            return sum.sum();
+        }
+    }
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder[] statusClasses = new LongAdder[STATUS_CLASSES.length];
+    private final LongAdder[] statusCodes = new LongAdder[600];
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder timeToFirstByte = new LongAdder();
+    private final LongAdder wireBytes = new LongAdder();
+    private final LongAdder decodedBytes = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder encoded = new LongAdder();
+    private final Map<String, LongAdder> methods = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> exceptions = new ConcurrentHashMap<>();
+    private final Histogram duration = new Histogram();
+    private final Histogram firstByte = new Histogram();
+
+    public Metrics() {
+        for (int i = 0; i < statusClasses.length; i++) statusClasses[i] = new LongAdder();
+        for (int i = 0; i < statusCodes.length; i++) statusCodes[i] = new LongAdder();
+    }
+
+    private static LongAdder counter(Map<String, LongAdder> map, String key) {
+        LongAdder counter = map.get(key);
+        return counter != null ? counter : map.computeIfAbsent(key, k -> new LongAdder());
+    }
+
+    /**
+     * Discard all counts, e.g. of a warmup. Only call when no requests are in flight, updates made while the
+     * counters are reset may be lost.
+     */
+    void reset() {
+        for (LongAdder c : new LongAdder[]{submitted, inFlight, bytes, timeToFirstByte, wireBytes, decodedBytes,
+                decodeNanos, encoded}) {
+            c.reset();
+        }
+        for (LongAdder c : statusClasses) c.reset();
+        for (LongAdder c : statusCodes) c.reset();
+        methods.clear();
+        exceptions.clear();
+        duration.reset();
+        firstByte.reset();
+    }
+
+    /**
+     * a request was queued for asynchronous execution
+     */
+    void submitted() {
+        submitted.increment();
+    }
+
+    void started(String method) {
+        inFlight.increment();
+        counter(methods, method).increment();
+    }
+
+    void completed(int statusCode, long numBytes, long ttfb, long elapsed) {
+        inFlight.decrement();
+        int statusClass = statusCode / 100;
+        statusClasses[statusClass >= 1 && statusClass <= 5 ? statusClass : 0].increment();
+        if (statusCode >= 0 && statusCode < statusCodes.length) statusCodes[statusCode].increment();
+        bytes.add(numBytes);
+        timeToFirstByte.add(ttfb);
+        firstByte.record(ttfb);
+        duration.record(elapsed);
+    }
+
+    /**
+     * transfer of a response decoded by the agent
+     *
+     * @param compressed whether the response had a content coding other than identity
+     */
+    void transferred(long wire, long decoded, long nanos, boolean compressed) {
+        wireBytes.add(wire);
+        decodedBytes.add(decoded);
+        decodeNanos.add(nanos);
+        if (compressed) encoded.increment();
+    }
+
+    void failed(Throwable e) {
+        inFlight.decrement();
+        statusClasses[0].increment();
+        counter(exceptions, e.getClass().getName()).increment();
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    /**
+     * @return completed requests, including failed ones
+     */
+    public long getRequests() {
+        long n = 0;
+        for (LongAdder c : statusClasses) n += c.sum();
+        return n;
+    }
+
+    /**
+     * @return requests that failed with an exception
+     */
+    public long getFailed() {
+        return statusClasses[0].sum();
+    }
+
+    /**
+     * @param statusClass 1 to 5 for 1xx to 5xx
+     */
+    public long getStatusClassCount(int statusClass) {
+        return statusClasses[statusClass].sum();
+    }
+
+    public long getStatusCount(int statusCode) {
+        return statusCodes[statusCode].sum();
+    }
+
+    /**
+     * @return failed requests and responses with a status outside of 2xx, 304 is a successful revalidation
+     */
+    public long getErrors() {
+        return getRequests() - statusClasses[2].sum() - statusCodes[304].sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return response bytes as received, before decoding the content coding
+     */
+    public long getWireBytes() {
+        return wireBytes.sum();
+    }
+
+    public long getDecodedBytes() {
+        return decodedBytes.sum();
+    }
+
+    public long getDecodeMillis() {
+        return decodeNanos.sum() / 1000000;
+    }
+
+    public long getEncodedResponses() {
+        return encoded.sum();
+    }
+
+    /**
+     * @return average time to first byte of the received responses, ms
+     */
+    public long getAverageTimeToFirstByte() {
+        long n = getRequests() - getFailed();
+        return n == 0 ? 0 : timeToFirstByte.sum() / n;
+    }
+
+    /**
+     * @return total time of the received responses
+     */
+    public Histogram getDuration() {
+        return duration;
+    }
+
+    public Histogram getTimeToFirstByte() {
+        return firstByte;
+    }
+
+    public Map<String, Long> getMethodCounts() {
+        return snapshot(methods);
+    }
+
+    public Map<String, Long> getExceptionCounts() {
+        return snapshot(exceptions);
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> map) {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : map.entrySet()) counts.put(e.getKey(), e.getValue().sum());
+        return counts;
+    }
+
+    /**
+     * @return all counters as name / value rows
+     */
+    public Report toReport() {
+        Report report = new Report();
+        report.setColumns(new String[]{"Metric", "Value"});
+        report.setColumnWidth(0, 50 * 254);
+        addRow(report, "Submitted", getSubmitted(), null);
+        addRow(report, "Requests", getRequests(), null);
+        addRow(report, "In flight", getInFlight(), null);
+        addRow(report, "Errors", getErrors(), getErrors() > 0 ? Report.STYLE_BAD : null);
+        addRow(report, "Bytes", getBytes(), null);
+        addRow(report, "Average time to first byte, ms", getAverageTimeToFirstByte(), null);
+        if (getDecodedBytes() > 0) {
+            addRow(report, "Wire bytes", getWireBytes(), null);
+            addRow(report, "Decoded bytes", getDecodedBytes(), null);
+            Report.Row row = report.createRow();
+            row.setValue(0, "Compression ratio");
+            row.setValue(1, String.format("%.2f", getDecodedBytes() / (double) Math.max(1, getWireBytes())));
+            addRow(report, "Compressed responses", getEncodedResponses(), null);
+            addRow(report, "Decode time, ms", getDecodeMillis(), null);
+        }
+        for (int i = 1; i < STATUS_CLASSES.length; i++) {
+            addRow(report, "Status " + STATUS_CLASSES[i], statusClasses[i].sum(), null);
+        }
+        for (int i = 0; i < statusCodes.length; i++) {
+            long n = statusCodes[i].sum();
+            if (n > 0) addRow(report, "Status " + i, n, (i >= 200 && i < 300) || i == 304 ? null : Report.STYLE_BAD);
+        }
+        for (Map.Entry<String, Long> e : getMethodCounts().entrySet()) {
+            addRow(report, "Method " + e.getKey(), e.getValue(), null);
+        }
+        addRow(report, "Failed", getFailed(), getFailed() > 0 ? Report.STYLE_BAD : null);
+        for (Map.Entry<String, Long> e : getExceptionCounts().entrySet()) {
+            addRow(report, "Failed with " + e.getKey(), e.getValue(), Report.STYLE_BAD);
+        }
+        return report;
+    }
+
+    private static void addRow(Report report, String name, long value, String style) {
+        Report.Row row = report.createRow();
+        row.setValue(0, name);
+        row.setValue(1, value);
+        if (style != null) row.setCellStyle(1, style);
+    }
+}
@@ -0,0 +1,199 @@
+package com.github.ykozlov.perf.utils;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes the {@link Metrics} of an agent in the OpenMetrics text format, so that long runs can be graphed next to
+ * the JVM metrics of AEM.
+ * <p>
+ * The metrics are served at http://localhost:port/metrics for Prometheus to scrape and/or written to a file at a
+ * fixed interval, replaced atomically so that a reader, e.g. the textfile collector of node_exporter, never sees a
+ * partial file. The exposition only sums {@link java.util.concurrent.atomic.LongAdder}s and reads atomic
+ * counters, it takes no lock that request threads could wait on.
+ */
+public class OpenMetricsExporter {
+    private static final Logger logger = LoggerFactory.getLogger(OpenMetricsExporter.class);
+
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final AEMAgent agent;
+    private final String prefix;
+    private HttpServer server;
+    private ScheduledExecutorService writer;
+    private File snapshotFile;
+
+    public OpenMetricsExporter(AEMAgent agent) {
+        this(agent, "aem_agent");
+    }
+
+    /**
+     * @param prefix prefix of the metric names
+     */
+    public OpenMetricsExporter(AEMAgent agent, String prefix) {
+        this.agent = agent;
+        this.prefix = prefix;
+    }
+
+    /**
+     * serve the metrics at http://localhost:port/metrics on a background thread
+     */
+    public synchronized void serve(int port) throws IOException {
+        if (server != null) return;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "openmetrics");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        logger.info("serving metrics at http://localhost:{}/metrics", server.getAddress().getPort());
+    }
+
+    /**
+     * write the metrics to the file every given number of seconds and once more on {@link #stop()}
+     */
+    public synchronized void writeTo(File file, int intervalSeconds) {
+        if (writer != null) return;
+        snapshotFile = file;
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "openmetrics-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleAtFixedRate(this::writeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void writeSnapshot() {
+        try {
+            Path target = snapshotFile.getAbsoluteFile().toPath();
+            Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.write(tmp, format().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("failed to write metrics to {}", snapshotFile, e);
+        }
+    }
+
+    /**
+     * stop serving and write the final snapshot
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (writer != null) {
+            writer.shutdownNow();
+            writer = null;
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * @return the current values in the OpenMetrics text format
+     */
+    public String format() {
+        Metrics metrics = agent.getMetrics();
+        StringBuilder out = new StringBuilder(4096);
+
+        family(out, "requests", "counter", "Completed requests by status class, failed requests got no response");
+        for (int i = 0; i < Metrics.STATUS_CLASSES.length; i++) {
+            long n = i == 0 ? metrics.getFailed() : metrics.getStatusClassCount(i);
+            sample(out, "requests_total", "class", Metrics.STATUS_CLASSES[i], n);
+        }
+        family(out, "responses", "counter", "Received responses by status code");
+        for (int code = 100; code < 600; code++) {
+            long n = metrics.getStatusCount(code);
+            if (n > 0) sample(out, "responses_total", "code", String.valueOf(code), n);
+        }
+        family(out, "requests_by_method", "counter", "Started requests by method");
+        for (Map.Entry<String, Long> e : metrics.getMethodCounts().entrySet()) {
+            sample(out, "requests_by_method_total", "method", e.getKey(), e.getValue());
+        }
+        family(out, "failures", "counter", "Requests failed with an exception by exception type");
+        for (Map.Entry<String, Long> e : metrics.getExceptionCounts().entrySet()) {
+            sample(out, "failures_total", "exception", e.getKey(), e.getValue());
+        }
+        family(out, "submitted", "counter", "Requests queued for asynchronous execution");
+        sample(out, "submitted_total", null, null, metrics.getSubmitted());
+        family(out, "in_flight", "gauge", "Requests being executed");
+        sample(out, "in_flight", null, null, metrics.getInFlight());
+        family(out, "response_bytes", "counter", "Decoded response body length");
+        sample(out, "response_bytes_total", null, null, metrics.getBytes());
+        if (metrics.getDecodedBytes() > 0) {
+            family(out, "wire_bytes", "counter", "Response bytes as received, before decoding the content coding");
+            sample(out, "wire_bytes_total", null, null, metrics.getWireBytes());
+            family(out, "decode_seconds", "counter", "Time spent decoding compressed responses");
+            sample(out, "decode_seconds_total", null, null, metrics.getDecodeMillis() / 1000.);
+        }
+
+        histogram(out, "request_duration_seconds", "Total time of the received responses", metrics.getDuration());
+        histogram(out, "time_to_first_byte_seconds", "Time to first byte of the received responses", metrics.getTimeToFirstByte());
+
+        PoolMonitor pool = agent.getPoolMonitor();
+        family(out, "connections_opened", "counter", "Connections opened");
+        sample(out, "connections_opened_total", null, null, pool.getConnectionsOpened());
+        family(out, "tls_handshakes", "counter", "TLS handshakes");
+        sample(out, "tls_handshakes_total", null, null, pool.getHandshakes());
+        family(out, "throttled_seconds", "counter", "Time requests waited for the rate limiter");
+        sample(out, "throttled_seconds_total", null, null, agent.getRateLimiter().getThrottledMillis() / 1000.);
+        family(out, "aborted", "gauge", "1 if the run was aborted, e.g. by the guard rails");
+        sample(out, "aborted", null, null, agent.isAborted() ? 1 : 0);
+
+        out.append("# EOF\n");
+        return out.toString();
+    }
+
+    private void family(StringBuilder out, String name, String type, String help) {
+        out.append("# TYPE ").append(prefix).append('_').append(name).append(' ').append(type).append('\n');
+        if (name.endsWith("_seconds")) out.append("# UNIT ").append(prefix).append('_').append(name).append(" seconds\n");
+        out.append("# HELP ").append(prefix).append('_').append(name).append(' ').append(help).append('\n');
+    }
+
+    private void sample(StringBuilder out, String name, String label, String value, Number n) {
+        out.append(prefix).append('_').append(name);
+        if (label != null) out.append('{').append(label).append("=\"").append(escape(value)).append("\"}");
+        out.append(' ').append(n).append('\n');
+    }
+
+    private void histogram(StringBuilder out, String name, String help, Metrics.Histogram histogram) {
+        family(out, name, "histogram", help);
+        long[] counts = histogram.getCounts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String le = i < Metrics.Histogram.BOUNDS.length ? String.valueOf(Metrics.Histogram.BOUNDS[i] / 1000.) : "+Inf";
+            sample(out, name + "_bucket", "le", le, cumulative);
+        }
+        sample(out, name + "_count", null, null, cumulative);
+        sample(out, name + "_sum", null, null, histogram.getSum() / 1000.);
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.ykozlov.perf.utils;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-template statistics of the phases of a run, e.g. a priming pass over cold caches and the measured passes.
+ * <p>
+ * Requests are recorded in the {@link TemplateStats} of the current phase. Comparing the latency of a template
+ * in the cold and the warm phase shows how much the dispatcher and Sling caches save for the workload.
+ */
+public class PhaseStats implements AEMAgent.RequestListener {
+    public static final String[] COLUMNS = {
+            "Phase", "Count", "Errors", "Error %", "Mean", "p50", "p90", "p95", "p99", "Max"};
+
+    private final UrlTemplates templates;
+    private final Map<String, TemplateStats> phases = new LinkedHashMap<>();
+    private volatile String phase;
+    private volatile TemplateStats current;
+
+    public PhaseStats(UrlTemplates templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * record the following requests under the given phase, requests of a phase started earlier are added to it
+     */
+    public synchronized void start(String name) {
+        current = phases.computeIfAbsent(name, n -> new TemplateStats(templates));
+        phase = name;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public TemplateStats get(String name) {
+        return phases.get(name);
+    }
+
+    @Override
+    public void completed(String method, String url, int statusCode, long elapsed, long bytes) {
+        TemplateStats stats = current;
+        if (stats != null) stats.record(url, statusCode, elapsed);
+    }
+
+    /**
+     * @return totals of each phase
+     */
+    public Report toReport() {
+        Report report = new Report();
+        report.setColumns(COLUMNS);
+        for (Map.Entry<String, TemplateStats> e : phases.entrySet()) {
+            long count = 0;
+            long errors = 0;
+            double sum = 0;
+            QuantileSketch all = new QuantileSketch();
+            for (TemplateStats.Entry t : e.getValue().getEntries()) {
+                count += t.getCount();
+                errors += t.getErrors();
+                sum += t.getMean() * t.getCount();
+                all.merge(t.getSketch());
+            }
+            Report.Row row = report.createRow();
+            row.setValue(0, e.getKey());
+            row.setValue(1, count);
+            row.setValue(2, errors);
+            row.setValue(3, String.format("%.2f", count == 0 ? 0. : errors * 100. / count));
+            if (count == 0) continue;
+            row.setValue(4, Math.round(sum / count));
+            row.setValue(5, Math.round(all.quantile(0.5)));
+            row.setValue(6, Math.round(all.quantile(0.9)));
+            row.setValue(7, Math.round(all.quantile(0.95)));
+            row.setValue(8, Math.round(all.quantile(0.99)));
+            row.setValue(9, Math.round(all.getMax()));
+            if (errors > 0) row.setCellStyle(2, Report.STYLE_BAD);
+        }
+        return report;
+    }
+
+    /**
+     * @return per-template latency of the two phases side by side, templates seen in both phases only
+     */
+    public Report compare(String cold, String warm) {
+        Report report = new Report();
+        report.setColumns(new String[]{"Template", cold + " Count", warm + " Count",
+                cold + " p50", warm + " p50", cold + " p99", warm + " p99", "p50 Saved %", "Mean Saved, ms"});
+        report.setColumnWidth(0, 70 * 254);
+        TemplateStats c = phases.get(cold);
+        TemplateStats w = phases.get(warm);
+        if (c == null || w == null) return report;
+
+        List<TemplateStats.Entry> entries = w.getEntries();
+        for (TemplateStats.Entry we : entries) {
+            TemplateStats.Entry ce = c.get(we.getTemplate());
+            if (ce == null) continue;
+            double coldP50 = ce.getSketch().quantile(0.5);
+            double warmP50 = we.getSketch().quantile(0.5);
+            Report.Row row = report.createRow();
+            row.setValue(0, we.getTemplate());
+            row.setValue(1, ce.getCount());
+            row.setValue(2, we.getCount());
+            row.setValue(3, Math.round(coldP50));
+            row.setValue(4, Math.round(warmP50));
+            row.setValue(5, Math.round(ce.getSketch().quantile(0.99)));
+            row.setValue(6, Math.round(we.getSketch().quantile(0.99)));
+            row.setValue(7, String.format("%.1f", coldP50 == 0 ? 0 : (coldP50 - warmP50) * 100 / coldP50));
+            row.setValue(8, Math.round(ce.getMean() - we.getMean()));
+            if (warmP50 > coldP50) row.setCellStyle(7, Report.STYLE_BAD);
+        }
+        return report;
+    }
+}
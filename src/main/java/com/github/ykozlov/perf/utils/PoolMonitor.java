@@ -0,0 +1,201 @@
+package com.github.ykozlov.perf.utils;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection pool health of an {@link AEMAgent}.
+ * <p>
+ * New connections are counted by wrapping the socket factories of the pool, so the number of TCP connects and
+ * TLS handshakes can be compared with the number of requests: a reuse ratio close to 100% means keep-alive works,
+ * a low one means the generator is paying a handshake per request. Pool stats (leased, available, pending)
+ * are sampled at a fixed interval into the "pool" report.
+ */
+public class PoolMonitor {
+    private static final Logger logger = LoggerFactory.getLogger(PoolMonitor.class);
+
+    public static final String[] COLUMNS = {
+            "Timestamp", "Leased", "Available", "Pending", "Max", "In Flight", "Requests", "Requests/s",
+            "Connections Opened", "Connections/s", "TLS Handshakes", "Reuse %"};
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final Metrics metrics;
+    private final Report report = new Report();
+    private PoolingHttpClientConnectionManager connectionManager;
+    private ScheduledExecutorService sampler;
+    private long lastTime;
+    private long lastRequests;
+    private long lastOpened;
+
+    public PoolMonitor(Metrics metrics) {
+        this.metrics = metrics;
+        report.setColumns(COLUMNS);
+        report.setColumnWidth(0, 20 * 254);
+    }
+
+    /**
+     * Counts sockets connected by the delegate
+     */
+    static class CountingSocketFactory implements ConnectionSocketFactory {
+        final ConnectionSocketFactory delegate;
+        final AtomicLong counter;
+
+        CountingSocketFactory(ConnectionSocketFactory delegate, AtomicLong counter) {
+            this.delegate = delegate;
+            this.counter = counter;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return delegate.createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            Socket socket = delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            counter.incrementAndGet();
+            return socket;
+        }
+    }
+
+    /**
+     * Counts TLS handshakes, both direct connects and upgrades of tunnelled connections
+     */
+    static class CountingLayeredSocketFactory extends CountingSocketFactory implements LayeredConnectionSocketFactory {
+        final AtomicLong connects;
+
+        CountingLayeredSocketFactory(LayeredConnectionSocketFactory delegate, AtomicLong handshakes, AtomicLong connects) {
+            super(delegate, handshakes);
+            this.connects = connects;
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            Socket socket = super.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            connects.incrementAndGet();
+            return socket;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            Socket layered = ((LayeredConnectionSocketFactory) delegate).createLayeredSocket(socket, target, port, context);
+            counter.incrementAndGet();
+            return layered;
+        }
+    }
+
+    public ConnectionSocketFactory wrap(ConnectionSocketFactory factory) {
+        return new CountingSocketFactory(factory, connectionsOpened);
+    }
+
+    public LayeredConnectionSocketFactory wrap(LayeredConnectionSocketFactory factory) {
+        return new CountingLayeredSocketFactory(factory, handshakes, connectionsOpened);
+    }
+
+    void setConnectionManager(PoolingHttpClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * discard the connection counts, e.g. of a warmup
+     */
+    void reset() {
+        connectionsOpened.set(0);
+        handshakes.set(0);
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * @return share of requests served over an already open connection, in percent
+     */
+    public double getReuseRatio() {
+        long n = metrics.getRequests();
+        return n == 0 ? 0 : Math.max(0, (n - connectionsOpened.get()) * 100. / n);
+    }
+
+    /**
+     * sample the pool every intervalSeconds until {@link #stop()}
+     */
+    public synchronized void start(int intervalSeconds) {
+        if (sampler != null) return;
+        lastTime = System.currentTimeMillis();
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(this::sample, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * stop sampling and record the final state
+     */
+    public synchronized void stop() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+        sample();
+    }
+
+    synchronized void sample() {
+        long now = System.currentTimeMillis();
+        long numRequests = metrics.getRequests();
+        long opened = connectionsOpened.get();
+        double seconds = Math.max(1, now - lastTime) / 1000.;
+        PoolStats stats = connectionManager == null ? null : connectionManager.getTotalStats();
+
+        Report.Row row = report.createRow();
+        row.setValue(0, new Date(now));
+        row.setCellStyle(0, Report.STYLE_DATETIME);
+        if (stats != null) {
+            row.setValue(1, stats.getLeased());
+            row.setValue(2, stats.getAvailable());
+            row.setValue(3, stats.getPending());
+            row.setValue(4, stats.getMax());
+        }
+        row.setValue(5, metrics.getInFlight());
+        row.setValue(6, numRequests);
+        row.setValue(7, String.format("%.2f", (numRequests - lastRequests) / seconds));
+        row.setValue(8, opened);
+        row.setValue(9, String.format("%.2f", (opened - lastOpened) / seconds));
+        row.setValue(10, handshakes.get());
+        row.setValue(11, String.format("%.1f", getReuseRatio()));
+        logger.info("pool: {}, {} in flight, {} requests ({}/s), {} errors, {} connections opened ({}/s), reuse {}%",
+                stats, row.getValue(5), numRequests, row.getValue(7), metrics.getErrors(),
+                opened, row.getValue(9), row.getValue(11));
+
+        lastTime = now;
+        lastRequests = numRequests;
+        lastOpened = opened;
+    }
+
+    public Report getReport() {
+        return report;
+    }
+}
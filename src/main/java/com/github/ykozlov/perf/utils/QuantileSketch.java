@@ -0,0 +1,213 @@
+package com.github.ykozlov.perf.utils;
+
+/**
+ * Mergeable quantile sketch with relative-error guarantees.
+ * <p>
+ * Values are mapped into logarithmically sized buckets, so memory depends on the range of
+ * the recorded values (a few hundred buckets for 1ms..1h at 1% accuracy), not on how many
+ * values were added. Two sketches created with the same accuracy can be merged by adding
+ * their bucket counts, which makes them suitable for combining results of different files or runs.
+ */
+public class QuantileSketch {
+    public static final double DEFAULT_ACCURACY = 0.01;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    private long[] counts = new long[0];
+    private int offset;
+    private long zeroCount;
+    private long count;
+    private double min = Double.MAX_VALUE;
+    private double max = -Double.MAX_VALUE;
+
+    public QuantileSketch() {
+        this(DEFAULT_ACCURACY);
+    }
+
+    public QuantileSketch(double relativeAccuracy) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("relativeAccuracy must be in (0, 1): " + relativeAccuracy);
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    public synchronized void add(double value, long n) {
+        if (n <= 0) return;
+        if (value < 1e-9) {
+            zeroCount += n;
+            value = Math.max(value, 0);
+        } else {
+            int idx = index(value);
+            ensureCapacity(idx, idx);
+            counts[idx - offset] += n;
+        }
+        count += n;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * add all values recorded by another sketch to this one
+     */
+    public void merge(QuantileSketch other) {
+        if (other == this) throw new IllegalArgumentException("cannot merge a sketch into itself");
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("cannot merge sketches with different accuracy: "
+                    + relativeAccuracy + " and " + other.relativeAccuracy);
+        }
+        long[] otherCounts;
+        int otherOffset;
+        long otherZero, otherCount;
+        double otherMin, otherMax;
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherOffset = other.offset;
+            otherZero = other.zeroCount;
+            otherCount = other.count;
+            otherMin = other.min;
+            otherMax = other.max;
+        }
+        if (otherCount == 0) return;
+        synchronized (this) {
+            if (otherCounts.length > 0) {
+                ensureCapacity(otherOffset, otherOffset + otherCounts.length - 1);
+                for (int i = 0; i < otherCounts.length; i++) {
+                    counts[otherOffset + i - offset] += otherCounts[i];
+                }
+            }
+            zeroCount += otherZero;
+            count += otherCount;
+            min = Math.min(min, otherMin);
+            max = Math.max(max, otherMax);
+        }
+    }
+
+    /**
+     * @param q quantile in the range [0, 1], e.g. 0.99 for the 99th percentile
+     * @return estimated value at the given quantile or NaN if the sketch is empty
+     */
+    public synchronized double quantile(double q) {
+        if (q < 0 || q > 1) throw new IllegalArgumentException("quantile must be in [0, 1]: " + q);
+        if (count == 0) return Double.NaN;
+        if (q == 0) return min;
+        if (q == 1) return max;
+
+        long rank = (long) (q * (count - 1));
+        long n = zeroCount;
+        if (n > rank) return 0;
+        for (int i = 0; i < counts.length; i++) {
+            n += counts[i];
+            if (n > rank) {
+                double v = 2 * Math.pow(gamma, i + offset) / (gamma + 1);
+                return Math.max(min, Math.min(max, v));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Receives non-empty buckets in ascending order of their values
+     */
+    public interface BucketVisitor {
+        void visit(int index, double value, long count);
+    }
+
+    /**
+     * visit the zero bucket (index {@link Integer#MIN_VALUE}) and all non-empty buckets in ascending order.
+     * Sketches with the same accuracy use the same bucket indexes.
+     */
+    public synchronized void forEachBucket(BucketVisitor visitor) {
+        if (zeroCount > 0) visitor.visit(Integer.MIN_VALUE, 0, zeroCount);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) visitor.visit(i + offset, 2 * Math.pow(gamma, i + offset) / (gamma + 1), counts[i]);
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public synchronized double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * Serialize into a compact single-line string, e.g. <code>0.01;3;0;12;-4:1,7:10,8:2</code>
+     * (accuracy; zero count; min; max; bucket:count pairs)
+     */
+    public synchronized String encode() {
+        StringBuilder buf = new StringBuilder();
+        buf.append(relativeAccuracy).append(';').append(zeroCount).append(';')
+                .append(count == 0 ? 0 : min).append(';').append(count == 0 ? 0 : max).append(';');
+        boolean first = true;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            if (!first) buf.append(',');
+            buf.append(i + offset).append(':').append(counts[i]);
+            first = false;
+        }
+        return buf.toString();
+    }
+
+    public static QuantileSketch decode(String str) {
+        String[] parts = str.split(";", -1);
+        if (parts.length != 5) throw new IllegalArgumentException("invalid sketch: " + str);
+        QuantileSketch sketch = new QuantileSketch(Double.parseDouble(parts[0]));
+        long zero = Long.parseLong(parts[1]);
+        if (zero > 0) sketch.add(0, zero);
+        if (!parts[4].isEmpty()) for (String pair : parts[4].split(",")) {
+            int idx = pair.indexOf(':');
+            int bucket = Integer.parseInt(pair.substring(0, idx));
+            long n = Long.parseLong(pair.substring(idx + 1));
+            sketch.ensureCapacity(bucket, bucket);
+            sketch.counts[bucket - sketch.offset] += n;
+            sketch.count += n;
+        }
+        if (sketch.count > 0) {
+            sketch.min = Double.parseDouble(parts[2]);
+            sketch.max = Double.parseDouble(parts[3]);
+        }
+        return sketch;
+    }
+
+    @Override
+    public String toString() {
+        return "QuantileSketch{count=" + getCount() + ", p50=" + quantile(0.5) + ", p99=" + quantile(0.99) + "}";
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    private void ensureCapacity(int minIndex, int maxIndex) {
+        if (counts.length == 0) {
+            counts = new long[maxIndex - minIndex + 1];
+            offset = minIndex;
+            return;
+        }
+        int newOffset = Math.min(offset, minIndex);
+        int newLast = Math.max(offset + counts.length - 1, maxIndex);
+        if (newOffset == offset && newLast == offset + counts.length - 1) return;
+
+        long[] grown = new long[newLast - newOffset + 1];
+        System.arraycopy(counts, 0, grown, offset - newOffset, counts.length);
+        counts = grown;
+        offset = newOffset;
+    }
+}
@@ -1,50 +1,201 @@
 package com.github.ykozlov.perf.utils;
 
-import org.apache.commons.collections4.bidimap.TreeBidiMap;
-
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.StringJoiner;
 
+/**
+ * Query string parameters in access logs and how they fragment the dispatcher cache.
+ * <p>
+ * For each parameter it estimates the number of distinct values and paths with HyperLogLog and keeps the most frequent
+ * values; for each path it estimates the number of distinct query strings, i.e. cache keys. Parameters and paths are
+ * tracked with Space-Saving counters, so memory is bounded by <code>--max-params</code> and <code>--max-paths</code>
+ * no matter how many lines are processed.
+ */
 public class QueryStringParameters {
+
+    static class ParameterStats {
+        final HyperLogLog values = new HyperLogLog(12);
+        final HyperLogLog paths = new HyperLogLog(10);
+        final TopK<Void> topValues;
+
+        ParameterStats(int topValues) {
+            this.topValues = new TopK<>(Math.max(topValues * 5, 50));
+        }
+    }
+
+    static class PathStats {
+        final HyperLogLog queryStrings = new HyperLogLog(10);
+        long withQuery;
+    }
+
+    static void usage() {
+        System.err.println("Usage: com.github.ykozlov.perf.utils.QueryStringParameters [options...] <file>...");
+        System.err.println("  --from time, --to time         Only analyze requests in the time range, e.g. --from '2019-05-01 10:00'");
+        System.err.println("  --log-format name|pattern      combined, dispatcher (default), cdn or an Apache LogFormat string");
+        System.err.println("  --top N                        Number of most frequent values to report per parameter, default is 10");
+        System.err.println("  --max-params N                 Max. number of parameters to track, default is 1000");
+        System.err.println("  --max-paths N                  Max. number of paths to track, default is 1000");
+        System.err.println("  --saveAs file                  Save the report in the given file, default is query-parameters.xlsx");
+    }
+
     public static void main(String[] args) throws IOException {
-        Pattern ptrn = Pattern.compile("(.+) \"(.+)\" (.+) \\[(.+)\\] \"([A-Z]+) (.+) HTTP/1.1\" (\\d+) (.+) \"(.*?)\" \"(.*?)\"");
-        Map<String, Integer> counts = new TreeMap<>();
-        for(String arg : args) {
-            for(String ln : Files.readAllLines(Paths.get(arg))){
-                Matcher m = ptrn.matcher(ln);
-                if(!m.matches()){
-                    continue;
-                }
-                String path = m.group(6);
-                if(path.startsWith("/iojs")){
-                    continue;
+        List<String> paths = new ArrayList<>();
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        AccessLogFormat format = AccessLogFormat.DISPATCHER;
+        int top = 10;
+        int maxParams = 1000;
+        int maxPaths = 1000;
+        String saveAs = "query-parameters.xlsx";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--from":
+                    from = LogIndex.parseTime(args[++i]);
+                    break;
+                case "--to":
+                    to = LogIndex.parseTime(args[++i]);
+                    break;
+                case "--log-format":
+                    format = AccessLogFormat.forName(args[++i]);
+                    break;
+                case "--top":
+                    top = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-params":
+                    maxParams = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-paths":
+                    maxPaths = Integer.parseInt(args[++i]);
+                    break;
+                case "--saveAs":
+                    saveAs = args[++i];
+                    break;
+                default:
+                    paths.add(args[i]);
+                    break;
+            }
+        }
+        if (paths.isEmpty()) {
+            usage();
+            return;
+        }
+
+        int topValues = top;
+        TopK<ParameterStats> params = new TopK<>(maxParams, () -> new ParameterStats(topValues));
+        TopK<PathStats> pathStats = new TopK<>(maxPaths, PathStats::new);
+        HyperLogLog distinctUrls = new HyperLogLog(14);
+        HyperLogLog distinctPaths = new HyperLogLog(14);
+        long[] numRequests = {0};
+        AccessLogReader reader = new AccessLogReader(format).withTimeRange(from, to);
+        for(String arg : paths) {
+            reader.read(Paths.get(arg), entry -> {
+                String url = entry.getPath();
+                if(url.startsWith("/iojs")){
+                    return;
                 }
-                int idx = path.indexOf('?');
+                numRequests[0]++;
+                int idx = url.indexOf('?');
+                String path = idx < 0 ? url : url.substring(0, idx);
+                distinctUrls.add(url);
+                distinctPaths.add(path);
+                TopK.Counter<PathStats> pc = pathStats.add(path);
                 if(idx > 0){
-                    String[] pairs = path.substring(idx + 1).split("&");
-                    for(String pair : pairs){
-                        String[] kv = pair.split("=");
-                        if(kv.length == 2) {
-                            int count = counts.getOrDefault(kv[0], 0);
-                            counts.put(kv[0], ++count);
+                    String query = url.substring(idx + 1);
+                    pc.getValue().withQuery++;
+                    pc.getValue().queryStrings.add(query);
+                    for(String pair : query.split("&")){
+                        int eq = pair.indexOf('=');
+                        if(eq > 0 && eq < pair.length() - 1) {
+                            String name = pair.substring(0, eq);
+                            String value = pair.substring(eq + 1);
+                            ParameterStats ps = params.add(name).getValue();
+                            ps.values.add(value);
+                            ps.paths.add(path);
+                            ps.topValues.add(value);
                         }
                     }
                 }
+            });
+        }
+
+        System.out.println(numRequests[0] + " requests, ~" + distinctUrls.estimate() + " distinct urls, ~"
+                + distinctPaths.estimate() + " distinct paths");
+        List<TopK.Counter<ParameterStats>> byCount = params.top(params.size());
+        for (int i = byCount.size() - 1; i >= 0; i--) {
+            TopK.Counter<ParameterStats> c = byCount.get(i);
+            System.out.println(c.getKey() + "\t" + c.getCount() + "\t~" + c.getValue().values.estimate() + " distinct values");
+        }
+
+        Map<String, Report> sheets = new LinkedHashMap<>();
+        sheets.put("parameters", parametersReport(byCount, top, numRequests[0]));
+        sheets.put("values", valuesReport(byCount, top));
+        sheets.put("paths", pathsReport(pathStats));
+        Report.save(saveAs, sheets);
+    }
+
+    static Report parametersReport(List<TopK.Counter<ParameterStats>> params, int top, long numRequests) {
+        Report report = new Report();
+        report.setColumns(new String[]{"Parameter", "Occurrences", "Count Error", "% of Requests",
+                "Distinct Values", "Distinct Paths", "Top Values"});
+        for (TopK.Counter<ParameterStats> c : params) {
+            ParameterStats ps = c.getValue();
+            StringJoiner values = new StringJoiner(", ");
+            for (TopK.Counter<Void> v : ps.topValues.top(top)) {
+                values.add(v.getKey() + " (" + v.getCount() + ")");
             }
+            Report.Row row = report.createRow();
+            row.setValue(0, c.getKey());
+            row.setValue(1, c.getCount());
+            row.setValue(2, c.getError());
+            row.setValue(3, String.format("%.2f", c.getCount() * 100. / numRequests));
+            row.setValue(4, ps.values.estimate());
+            row.setValue(5, ps.paths.estimate());
+            row.setValue(6, values.toString());
         }
-        Map.Entry<String, Integer>[] entries = counts.entrySet().toArray(new Map.Entry[0]);
-        Arrays.sort(entries, Map.Entry.comparingByValue());
-        for(Map.Entry<String, Integer> e : entries){
-            System.out.println(e.getKey()+ "\t" + e.getValue());
+        return report;
+    }
+
+    static Report valuesReport(List<TopK.Counter<ParameterStats>> params, int top) {
+        Report report = new Report();
+        report.setColumns(new String[]{"Parameter", "Value", "Count", "Count Error"});
+        for (TopK.Counter<ParameterStats> c : params) {
+            for (TopK.Counter<Void> v : c.getValue().topValues.top(top)) {
+                Report.Row row = report.createRow();
+                row.setValue(0, c.getKey());
+                row.setValue(1, v.getKey());
+                row.setValue(2, v.getCount());
+                row.setValue(3, v.getError());
+            }
+        }
+        return report;
+    }
+
+    /**
+     * paths sorted by the number of distinct cache keys they create
+     */
+    static Report pathsReport(TopK<PathStats> pathStats) {
+        Report report = new Report();
+        report.setColumns(new String[]{"Path", "Requests", "Count Error", "With Query String",
+                "Distinct Query Strings", "Cache Keys per 100 Requests"});
+        report.setColumnWidth(0, 70 * 254);
+        List<TopK.Counter<PathStats>> list = pathStats.top(pathStats.size());
+        list.sort((c1, c2) -> Long.compare(c2.getValue().queryStrings.estimate(), c1.getValue().queryStrings.estimate()));
+        for (TopK.Counter<PathStats> c : list) {
+            PathStats ps = c.getValue();
+            long keys = ps.queryStrings.estimate() + (ps.withQuery < c.getCount() ? 1 : 0);
+            Report.Row row = report.createRow();
+            row.setValue(0, c.getKey());
+            row.setValue(1, c.getCount());
+            row.setValue(2, c.getError());
+            row.setValue(3, ps.withQuery);
+            row.setValue(4, ps.queryStrings.estimate());
+            row.setValue(5, String.format("%.1f", Math.min(keys, c.getCount()) * 100. / c.getCount()));
         }
+        return report;
     }
 }
@@ -0,0 +1,72 @@
+package com.github.ykozlov.perf.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-host token buckets that cap the request rate.
+ * <p>
+ * Each host has its own bucket refilled at the configured rate and holding at most one token, so requests are
+ * paced evenly rather than sent in bursts. A request that finds the bucket empty reserves the next token and
+ * sleeps until it is due, so waiting requests are released in arrival order. The rate can be changed while
+ * the test is running, e.g. by {@link GuardRails}.
+ */
+public class RateLimiter {
+    static class Bucket {
+        double tokens = 1;
+        long last = System.nanoTime();
+    }
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private volatile double rate;
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    /**
+     * @param rate requests per second per host, 0 for no limit
+     */
+    public RateLimiter(double rate) {
+        this.rate = rate;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * block until the host may receive the next request
+     *
+     * @return time spent waiting, ns
+     */
+    public long acquire(String host) throws InterruptedException {
+        double r = rate;
+        if (r <= 0) return 0;
+
+        Bucket bucket = buckets.computeIfAbsent(host, h -> new Bucket());
+        long waitNanos;
+        synchronized (bucket) {
+            long now = System.nanoTime();
+            bucket.tokens = Math.min(1, bucket.tokens + (now - bucket.last) * r / 1e9);
+            bucket.last = now;
+            bucket.tokens -= 1;
+            waitNanos = bucket.tokens >= 0 ? 0 : (long) (-bucket.tokens * 1e9 / r);
+        }
+        if (waitNanos > 0) {
+            throttledNanos.addAndGet(waitNanos);
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return waitNanos;
+    }
+
+    /**
+     * @return approximate total time requests spent waiting for a token
+     */
+    public long getThrottledMillis() {
+        return throttledNanos.get() / 1000000;
+    }
+}
@@ -2,6 +2,10 @@ package com.github.ykozlov.perf.utils;
 
 
 import org.apache.commons.lang3.time.FastDateFormat;
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.CellType;
@@ -12,16 +16,26 @@ import org.apache.poi.ss.usermodel.IndexedColors;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
 import org.apache.poi.xssf.streaming.SXSSFSheet;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.DefaultIndexedColorMap;
+import org.apache.poi.xssf.usermodel.XSSFComment;
 import org.apache.poi.xssf.usermodel.XSSFCellStyle;
 import org.apache.poi.xssf.usermodel.XSSFColor;
 import org.apache.poi.xssf.usermodel.XSSFFont;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
+import javax.xml.parsers.ParserConfigurationException;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -31,6 +45,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.io.Writer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -342,9 +357,19 @@ public class Report implements Iterable<Report.Row> {
 
     private void saveXls(String fileName) throws IOException {
         SXSSFWorkbook wb = new SXSSFWorkbook();
-        SXSSFSheet sheet = wb.createSheet();
+        saveSheet(wb, sheetName);
+
+        logger.info("saving report as " + fileName);
+        try (FileOutputStream out = new FileOutputStream(fileName)){
+            wb.write(out);
+        }
+
+        wb.dispose();
+    }
+
+    private void saveSheet(SXSSFWorkbook wb, String name) throws IOException {
+        SXSSFSheet sheet = name == null ? wb.createSheet() : wb.createSheet(name);
         sheet.trackAllColumnsForAutoSizing();
-        if(sheetName != null) wb.setSheetName(0, sheetName);
         save(sheet);
         if(hiddenColumns != null) {
             for(int i : hiddenColumns){
@@ -356,14 +381,30 @@ public class Report implements Iterable<Report.Row> {
             int width = e.getValue();
             sheet.setColumnWidth(columnIndex, width);
         }
+        styleMap.clear();
+    }
+
+    /**
+     * save several reports as sheets of a single .xlsx file
+     *
+     * @param sheets reports keyed by sheet name
+     */
+    public static void save(String fileName, Map<String, Report> sheets) throws IOException {
+        File f = new File(fileName);
+        if(f.getParentFile() != null) f.getParentFile().mkdirs();
+
+        SXSSFWorkbook wb = new SXSSFWorkbook();
+        for(Map.Entry<String, Report> e : sheets.entrySet()){
+            e.getValue().saveSheet(wb, e.getKey());
+            e.getValue().isModified = false;
+        }
 
         logger.info("saving report as " + fileName);
-        try (FileOutputStream out = new FileOutputStream(fileName)){
+        try (FileOutputStream out = new FileOutputStream(f)){
             wb.write(out);
         }
 
         wb.dispose();
-        styleMap.clear();
     }
 
     public void freezeTopRow(){
@@ -631,6 +672,103 @@ public class Report implements Iterable<Report.Row> {
         }
     }
 
+    /**
+     * Receives rows of a report file one at a time, see {@link #stream(File, String, RowHandler)}
+     */
+    public interface RowHandler {
+        void handle(String[] columns, Row row) throws IOException;
+    }
+
+    /**
+     * Read a report file row by row without keeping the rows in memory.
+     * .xlsx files are parsed with the SAX event API, formula cells are passed as formula text,
+     * e.g. <code>HYPERLINK("http://localhost:4502/content/page.html")</code>.
+     * Other files are read as tab-delimited (.txt) or comma-delimited (.csv) text, the first line is the header.
+     *
+     * @param sheetName name of the sheet to read or null to read the first sheet
+     */
+    public static void stream(File file, String sheetName, RowHandler handler) throws IOException {
+        Report re = new Report();
+        re.disableRowMaps();
+        String fileName = file.getName();
+        if(fileName.endsWith(".xlsx")) {
+            streamXls(file, sheetName, re, handler);
+            return;
+        }
+        String delimiter = fileName.endsWith(".csv") ? "," : "\t";
+        String nullValue = fileName.endsWith(".csv") ? "" : "-";
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))){
+            String line = reader.readLine();
+            if(line == null) return;
+            re.columns = line.split(delimiter);
+            while((line = reader.readLine()) != null){
+                String[] vals = line.split(delimiter);
+                Row e = re.new Row();
+                for(int i = 0; i < vals.length; i++){
+                    if(!nullValue.equals(vals[i])) e.values.put(i, vals[i]);
+                }
+                handler.handle(re.columns, e);
+            }
+        }
+    }
+
+    private static void streamXls(File file, String sheetName, Report re, RowHandler handler) throws IOException {
+        try(OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ)){
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+            StylesTable styles = reader.getStylesTable();
+            XSSFReader.SheetIterator it = (XSSFReader.SheetIterator)reader.getSheetsData();
+            while(it.hasNext()){
+                try(InputStream is = it.next()){
+                    if(sheetName != null && !sheetName.equals(it.getSheetName())) continue;
+
+                    XSSFSheetXMLHandler.SheetContentsHandler contents = new XSSFSheetXMLHandler.SheetContentsHandler() {
+                        Row current;
+                        List<String> header;
+
+                        public void startRow(int rowNum) {
+                            if(rowNum == 0) header = new ArrayList<>();
+                            else current = re.new Row();
+                        }
+
+                        public void endRow(int rowNum) {
+                            if(rowNum == 0) {
+                                re.columns = header.toArray(new String[0]);
+                                header = null;
+                            } else if(current != null) {
+                                try {
+                                    handler.handle(re.columns, current);
+                                } catch (IOException e){
+                                    throw new UncheckedIOException(e);
+                                }
+                                current = null;
+                            }
+                        }
+
+                        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+                            int col = new CellReference(cellReference).getCol();
+                            if(header != null) {
+                                while(header.size() < col) header.add(null);
+                                header.add(formattedValue);
+                            } else if(current != null) {
+                                current.values.put(col, formattedValue);
+                            }
+                        }
+                    };
+                    XMLReader parser = SAXHelper.newXMLReader();
+                    parser.setContentHandler(new XSSFSheetXMLHandler(styles, null, strings, contents, new DataFormatter(), true));
+                    parser.parse(new InputSource(is));
+                    return;
+                }
+            }
+            if(sheetName != null) throw new IllegalArgumentException("Invalid sheet name: " + sheetName);
+        } catch (UncheckedIOException e){
+            throw e.getCause();
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e){
+            throw new IOException(e);
+        }
+    }
+
     public void write(Writer out) throws IOException {
         if(columns != null) {
             for(int i = 0; i < columns.length; i++){
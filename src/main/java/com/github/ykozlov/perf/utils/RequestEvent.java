@@ -0,0 +1,70 @@
+package com.github.ykozlov.perf.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event of a request sent by {@link AEMAgent}, so that client-side GC pauses, safepoints and
+ * CPU load can be seen in the same recording as the slow requests they delay. The duration of the event is the
+ * time from the rate limiter to the decoded body.
+ * <p>
+ * The event is created for every request, the fields are only filled if {@link #shouldCommit()}, so with no
+ * recording running or requests below the threshold the cost is an allocation the JIT can usually eliminate.
+ */
+@Name("com.github.ykozlov.perf.Request")
+@Label("AEM Agent Request")
+@Category({"AEM Agent"})
+@Description("HTTP request sent by the load generator")
+@StackTrace(false)
+class RequestEvent extends Event {
+    @Label("Method")
+    String method;
+
+    @Label("URL")
+    String url;
+
+    @Label("URL Template")
+    String template;
+
+    @Label("Status")
+    @Description("0 if the request failed with an exception")
+    int status;
+
+    @Label("Protocol")
+    String protocol;
+
+    @Label("Conditional")
+    boolean conditional;
+
+    @Label("Throttled")
+    @Description("Time spent waiting for the rate limiter")
+    @Timespan(Timespan.NANOSECONDS)
+    long throttled;
+
+    @Label("Time To First Byte")
+    @Timespan(Timespan.MILLISECONDS)
+    long timeToFirstByte;
+
+    @Label("Decode Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long decodeTime;
+
+    @Label("Body Length")
+    @Description("Decoded body length in characters")
+    @DataAmount(DataAmount.BYTES)
+    long bytes;
+
+    @Label("Wire Bytes")
+    @Description("Body bytes as received, 0 unless the agent decodes the responses")
+    @DataAmount(DataAmount.BYTES)
+    long wireBytes;
+
+    @Label("Error")
+    String error;
+}
@@ -7,9 +7,12 @@ import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.xssf.streaming.SXSSFSheet;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -29,7 +32,22 @@ public class RequestLogAnalyzer {
     private static SimpleDateFormat df = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
 
     private static void usage() {
-
+        System.err.println("Usage: com.github.ykozlov.perf.utils.RequestLogAnalyzer [options...] <request.log>...");
+        System.err.println("  --skip regex                   Skip requests with paths matching the regex");
+        System.err.println("  --method M                     Include requests with the given http method, default is GET");
+        System.err.println("  --save file                    Save the report in the given file, default is requests.xlsx");
+        System.err.println("  --rows N                       Max. number of rows to write");
+        System.err.println("  --templates                    Add a sheet with per url template statistics");
+        System.err.println("  --template-rule regex=repl     Custom url template rule applied before the built-in normalization");
+        System.err.println("  --stats file                   Save per-template statistics in a mergeable sidecar file");
+        System.err.println("                                 In the follow mode the statistics of all followed requests are saved on exit");
+        System.err.println("  --merge file                   Merge per-template statistics saved by an earlier run");
+        System.err.println("  --from time, --to time         Only analyze requests in the time range, e.g. --from '2019-05-01 10:00'");
+        System.err.println("                                 The log is indexed in a sidecar .idx file on first use");
+        System.err.println("  --follow                       Tail the log and print rolling 1-minute / 5-minute statistics");
+        System.err.println("  --refresh seconds              How often to refresh the summary in the follow mode, default is 10");
+        System.err.println("  --top N                        Number of templates in the summary, default is 20");
+        System.err.println("  --summary file                 Write the summary to a file instead of stdout");
     }
 
     public static void main(String[] args) throws IOException, ParseException {
@@ -38,6 +56,16 @@ public class RequestLogAnalyzer {
         List<Pattern> skipPatterns = new ArrayList<>();
         String saveAs = "requests.xlsx";
         int rowLimit = Integer.MAX_VALUE;
+        boolean withTemplates = false;
+        UrlTemplates urlTemplates = new UrlTemplates();
+        List<File> mergeStats = new ArrayList<>();
+        File statsFile = null;
+        boolean follow = false;
+        int refreshSeconds = 10;
+        int topRows = 20;
+        String summaryFile = null;
+        long from = 0;
+        long to = Long.MAX_VALUE;
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "--skip":
@@ -52,6 +80,39 @@ public class RequestLogAnalyzer {
                 case "--method":
                     methods.add(args[++i]);
                     break;
+                case "--templates":
+                    withTemplates = true;
+                    break;
+                case "--template-rule":
+                    urlTemplates.withRule(args[++i]);
+                    withTemplates = true;
+                    break;
+                case "--stats":
+                    statsFile = new File(args[++i]);
+                    withTemplates = true;
+                    break;
+                case "--merge":
+                    mergeStats.add(new File(args[++i]));
+                    withTemplates = true;
+                    break;
+                case "--follow":
+                    follow = true;
+                    break;
+                case "--refresh":
+                    refreshSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--top":
+                    topRows = Integer.parseInt(args[++i]);
+                    break;
+                case "--summary":
+                    summaryFile = args[++i];
+                    break;
+                case "--from":
+                    from = LogIndex.parseTime(args[++i]);
+                    break;
+                case "--to":
+                    to = LogIndex.parseTime(args[++i]);
+                    break;
                 default:
                     paths.add(args[i]);
                     break;
@@ -62,33 +123,29 @@ public class RequestLogAnalyzer {
             return;
         }
 
-        Map<String, Matcher> r1 = new LinkedHashMap<>();
+        TemplateStats templateStats = new TemplateStats(urlTemplates);
+        for (File f : mergeStats) {
+            templateStats.load(f);
+        }
+        if (follow) {
+            follow(Paths.get(paths.get(0)), urlTemplates, methods, skipPatterns, refreshSeconds, topRows, summaryFile,
+                    templateStats, statsFile);
+            return;
+        }
+
+        Pairer pairer = new Pairer(Integer.MAX_VALUE);
         for (String path : paths) {
             List<Request> requests = new ArrayList<>();
-            for (String line : Files.readAllLines(Paths.get(path))) {
-                Matcher m1 = REQUEST_STARTED.matcher(line);
-                if (m1.matches()) {
-                    String id = m1.group(2);
-                    r1.put(id, m1);
-                } else {
-                    Matcher mEnd = REQUEST_ENDED.matcher(line);
-                    if (mEnd.matches()) {
-                        String id = mEnd.group(2);
-                        Matcher mStart = r1.get(id);
-                        if (mStart != null) {
-                            Request r = new Request(mStart, mEnd);
-                            r1.remove(id);
-                            if (!methods.contains(r.method) || skipPatterns.stream().anyMatch(p -> p.matcher(r.path).matches())) {
-                                continue;
-                            }
-                            requests.add(r);
-                        } else {
-                            System.err.println("unmatched request: " + id);
-                        }
-                    } else {
-                        System.err.println("invalid request line: " + line);
-                    }
+            for (String line : LogIndex.readLines(Paths.get(path), from, to)) {
+                Request r = pairer.pair(line);
+                if (r == null) {
+                    continue;
                 }
+                if (!methods.contains(r.method) || skipPatterns.stream().anyMatch(p -> p.matcher(r.path).matches())) {
+                    continue;
+                }
+                requests.add(r);
+                if (withTemplates) templateStats.record(r.path, (int) r.status, r.elapsed);
             }
             System.out.println(requests.size() + " requests loaded");
             try (FileOutputStream out = new FileOutputStream(saveAs)) {
@@ -124,10 +181,202 @@ public class RequestLogAnalyzer {
                     //sheet.autoSizeColumn(i);
                 }
                 sheet.setAutoFilter(new CellRangeAddress(0, rownum, 0, 3));
+                if (withTemplates) {
+                    System.out.println(templateStats.size() + " url templates");
+                    templateStats.toReport().save(wb.createSheet("templates"));
+                }
                 wb.write(out);
                 wb.close();
             }
         }
+        if (statsFile != null) {
+            templateStats.save(statsFile);
+        }
+    }
+
+    /**
+     * Tail a request.log and periodically print rolling 1-minute and 5-minute statistics per url template.
+     * Reading starts at the current end of the file, rotated files are followed.
+     *
+     * @param templateStats statistics of all followed requests, e.g. merged from earlier runs
+     * @param statsFile     file to save templateStats in when the JVM exits, e.g. on Ctrl+C, or null
+     */
+    static void follow(Path path, UrlTemplates urlTemplates, List<String> methods, List<Pattern> skipPatterns,
+                       int refreshSeconds, int topRows, String summaryFile,
+                       TemplateStats templateStats, File statsFile) throws IOException {
+        RollingStats stats = new RollingStats(urlTemplates, 10 * 1000, 31);
+        if (statsFile != null) {
+            // the follow mode only ends when the JVM is stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    templateStats.save(statsFile);
+                } catch (IOException e) {
+                    System.err.println("failed to save " + statsFile + ": " + e);
+                }
+            }, "save-stats"));
+        }
+        // a request started before rotation may never end, don't let them accumulate
+        Pairer pairer = new Pairer(100000);
+        DateCache dates = new DateCache();
+        try (LogTailer tailer = new LogTailer(path, true)) {
+            System.err.println("following " + path);
+            long nextRefresh = System.currentTimeMillis() + refreshSeconds * 1000L;
+            while (!Thread.currentThread().isInterrupted()) {
+                int n = tailer.poll(line -> {
+                    Request r = pairer.pair(line);
+                    if (r == null || !methods.contains(r.method)
+                            || skipPatterns.stream().anyMatch(p -> p.matcher(r.path).matches())) {
+                        return;
+                    }
+                    templateStats.record(r.path, (int) r.status, r.elapsed);
+                    try {
+                        stats.record(dates.parse(r.timeEnded), r.path, (int) r.status, r.elapsed);
+                    } catch (ParseException e) {
+                        System.err.println("invalid timestamp: " + r.timeEnded);
+                    }
+                });
+                long now = System.currentTimeMillis();
+                if (now >= nextRefresh) {
+                    printSummary(stats, topRows, summaryFile);
+                    nextRefresh = now + refreshSeconds * 1000L;
+                }
+                if (n == 0) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    static void printSummary(RollingStats stats, int topRows, String summaryFile) throws IOException {
+        long now = stats.getLatest();
+        if (now == 0) return;
+
+        long oneMinute = 60 * 1000;
+        long fiveMinutes = 5 * oneMinute;
+        TemplateStats w1 = stats.window(now, oneMinute);
+        TemplateStats w5 = stats.window(now, fiveMinutes);
+        double span1 = stats.span(now, oneMinute) / 1000.;
+        double span5 = stats.span(now, fiveMinutes) / 1000.;
+
+        Report report = new Report();
+        report.setColumns(new String[]{"Template", "1m req/s", "1m p50", "1m p95", "1m p99", "1m errors",
+                "5m req/s", "5m p50", "5m p99", "5m errors"});
+        Report.Row total = report.createRow();
+        long count1 = 0, errors1 = 0, count5 = 0, errors5 = 0;
+        QuantileSketch all1 = new QuantileSketch();
+        QuantileSketch all5 = new QuantileSketch();
+        for (TemplateStats.Entry e : w1.getEntries()) {
+            count1 += e.getCount();
+            errors1 += e.getErrors();
+            all1.merge(e.getSketch());
+        }
+        for (TemplateStats.Entry e : w5.getEntries()) {
+            count5 += e.getCount();
+            errors5 += e.getErrors();
+            all5.merge(e.getSketch());
+        }
+        total.setValue(0, "*");
+        setSummaryValues(total, count1 / span1, all1, errors1, count5 / span5, all5, errors5);
+
+        List<TemplateStats.Entry> entries = w5.getEntries();
+        for (TemplateStats.Entry e5 : entries.subList(0, Math.min(topRows, entries.size()))) {
+            TemplateStats.Entry e1 = w1.get(e5.getTemplate());
+            Report.Row row = report.createRow();
+            row.setValue(0, e5.getTemplate());
+            setSummaryValues(row,
+                    e1 == null ? 0 : e1.getCount() / span1, e1 == null ? new QuantileSketch() : e1.getSketch(), e1 == null ? 0 : e1.getErrors(),
+                    e5.getCount() / span5, e5.getSketch(), e5.getErrors());
+        }
+
+        if (summaryFile != null) {
+            report.save(summaryFile);
+        } else {
+            Writer out = new OutputStreamWriter(System.out);
+            // clear the terminal and print the summary from the top
+            out.write("\033[H\033[2J");
+            out.write("as of " + new Date(now) + "\n");
+            report.write(out);
+            out.flush();
+        }
+    }
+
+    private static void setSummaryValues(Report.Row row, double rps1, QuantileSketch s1, long errors1,
+                                         double rps5, QuantileSketch s5, long errors5) {
+        row.setValue(1, String.format("%.2f", rps1));
+        row.setValue(2, s1.getCount() == 0 ? "-" : String.valueOf(Math.round(s1.quantile(0.5))));
+        row.setValue(3, s1.getCount() == 0 ? "-" : String.valueOf(Math.round(s1.quantile(0.95))));
+        row.setValue(4, s1.getCount() == 0 ? "-" : String.valueOf(Math.round(s1.quantile(0.99))));
+        row.setValue(5, errors1);
+        row.setValue(6, String.format("%.2f", rps5));
+        row.setValue(7, s5.getCount() == 0 ? "-" : String.valueOf(Math.round(s5.quantile(0.5))));
+        row.setValue(8, s5.getCount() == 0 ? "-" : String.valueOf(Math.round(s5.quantile(0.99))));
+        row.setValue(9, errors5);
+    }
+
+    /**
+     * Pairs REQUEST_STARTED / REQUEST_ENDED lines by request id
+     */
+    static class Pairer {
+        private final Map<String, Matcher> pending;
+
+        /**
+         * @param maxPending max. number of started requests waiting for their end line,
+         *                   the oldest are discarded when the limit is reached
+         */
+        Pairer(int maxPending) {
+            pending = new LinkedHashMap<String, Matcher>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Matcher> eldest) {
+                    return size() > maxPending;
+                }
+            };
+        }
+
+        /**
+         * @return the completed request or null if the line starts a request or cannot be paired
+         */
+        Request pair(String line) {
+            Matcher m1 = REQUEST_STARTED.matcher(line);
+            if (m1.matches()) {
+                String id = m1.group(2);
+                pending.put(id, m1);
+                return null;
+            }
+            Matcher mEnd = REQUEST_ENDED.matcher(line);
+            if (mEnd.matches()) {
+                String id = mEnd.group(2);
+                Matcher mStart = pending.remove(id);
+                if (mStart != null) {
+                    return new Request(mStart, mEnd);
+                } else {
+                    System.err.println("unmatched request: " + id);
+                }
+            } else {
+                System.err.println("invalid request line: " + line);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Parses request.log timestamps, consecutive lines mostly share the same second
+     */
+    static class DateCache {
+        private final SimpleDateFormat format = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+        private String lastValue;
+        private long lastTime;
+
+        long parse(String value) throws ParseException {
+            if (!value.equals(lastValue)) {
+                lastTime = format.parse(value).getTime();
+                lastValue = value;
+            }
+            return lastTime;
+        }
     }
 
     static class Request {
@@ -0,0 +1,289 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pre-parsed access log for replay.
+ * <p>
+ * Requests are stored column-wise in primitive arrays: timestamps, path and client ids into interned dictionaries,
+ * status codes and method codes. The table is saved next to the log as <code>&lt;log&gt;.rtab</code> and memory-mapped
+ * on later runs, so only the dictionaries are decoded at startup. The sidecar is rebuilt if the log, the log format
+ * or the time range changed.
+ */
+public class RequestTable {
+    private static final Logger logger = LoggerFactory.getLogger(RequestTable.class);
+
+    private static final int MAGIC = 0x52544142; // RTAB
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 64;
+
+    private final int size;
+    private final LongBuffer timestamps;
+    private final IntBuffer pathIds;
+    private final IntBuffer clientIds;
+    private final ShortBuffer statuses;
+    private final ByteBuffer methodCodes;
+    private final String[] paths;
+    private final String[] clients;
+    private final String[] methods;
+
+    /**
+     * Collects parsed entries and interns paths, clients and methods
+     */
+    public static class Builder {
+        private int size;
+        private long[] timestamps = new long[1024];
+        private int[] pathIds = new int[1024];
+        private int[] clientIds = new int[1024];
+        private short[] statuses = new short[1024];
+        private byte[] methodCodes = new byte[1024];
+        private final Map<String, Integer> pathDict = new HashMap<>();
+        private final Map<String, Integer> clientDict = new HashMap<>();
+        private final Map<String, Integer> methodDict = new HashMap<>();
+        private final List<String> paths = new ArrayList<>();
+        private final List<String> clients = new ArrayList<>();
+        private final List<String> methods = new ArrayList<>();
+
+        public Builder add(AccessLogEntry entry) {
+            if (size == timestamps.length) {
+                int capacity = size * 2;
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                pathIds = Arrays.copyOf(pathIds, capacity);
+                clientIds = Arrays.copyOf(clientIds, capacity);
+                statuses = Arrays.copyOf(statuses, capacity);
+                methodCodes = Arrays.copyOf(methodCodes, capacity);
+            }
+            int methodId = intern(methodDict, methods, entry.getMethod());
+            if (methodId > Byte.MAX_VALUE) throw new IllegalStateException("too many distinct methods");
+            timestamps[size] = entry.getTimestamp();
+            pathIds[size] = intern(pathDict, paths, entry.getPath());
+            clientIds[size] = intern(clientDict, clients, entry.getClientIp() + " " + entry.getUserAgent());
+            statuses[size] = (short) entry.getStatus();
+            methodCodes[size] = (byte) methodId;
+            size++;
+            return this;
+        }
+
+        private static int intern(Map<String, Integer> dict, List<String> values, String value) {
+            Integer id = dict.get(value);
+            if (id == null) {
+                id = values.size();
+                dict.put(value, id);
+                values.add(value);
+            }
+            return id;
+        }
+
+        public RequestTable build() {
+            return new RequestTable(size,
+                    LongBuffer.wrap(Arrays.copyOf(timestamps, size)),
+                    IntBuffer.wrap(Arrays.copyOf(pathIds, size)),
+                    IntBuffer.wrap(Arrays.copyOf(clientIds, size)),
+                    ShortBuffer.wrap(Arrays.copyOf(statuses, size)),
+                    ByteBuffer.wrap(Arrays.copyOf(methodCodes, size)),
+                    paths.toArray(new String[0]), clients.toArray(new String[0]), methods.toArray(new String[0]));
+        }
+    }
+
+    private RequestTable(int size, LongBuffer timestamps, IntBuffer pathIds, IntBuffer clientIds, ShortBuffer statuses,
+                         ByteBuffer methodCodes, String[] paths, String[] clients, String[] methods) {
+        this.size = size;
+        this.timestamps = timestamps;
+        this.pathIds = pathIds;
+        this.clientIds = clientIds;
+        this.statuses = statuses;
+        this.methodCodes = methodCodes;
+        this.paths = paths;
+        this.clients = clients;
+        this.methods = methods;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return epoch millis or -1 if the log format has no timestamp
+     */
+    public long getTimestamp(int idx) {
+        return timestamps.get(idx);
+    }
+
+    public String getPath(int idx) {
+        return paths[pathIds.get(idx)];
+    }
+
+    /**
+     * @return client IP and User-Agent separated by a space
+     */
+    public String getClient(int idx) {
+        return clients[clientIds.get(idx)];
+    }
+
+    public String getMethod(int idx) {
+        return methods[methodCodes.get(idx)];
+    }
+
+    public int getStatus(int idx) {
+        return statuses.get(idx);
+    }
+
+    public int getNumPaths() {
+        return paths.length;
+    }
+
+    public static Path tablePath(Path log) {
+        return log.resolveSibling(log.getFileName() + ".rtab");
+    }
+
+    /**
+     * load the sidecar table of the log or parse the log and save the table
+     *
+     * @param from epoch millis, inclusive, 0 to read from the beginning
+     * @param to   epoch millis, exclusive, Long.MAX_VALUE to read till the end
+     */
+    public static RequestTable open(Path log, AccessLogFormat format, long from, long to) throws IOException {
+        Path rtab = tablePath(log);
+        long length = Files.size(log);
+        long head = LogIndex.headHash(log);
+        long formatHash = format.getPattern().hashCode();
+        if (Files.exists(rtab)) {
+            try {
+                RequestTable table = load(rtab, length, head, formatHash, from, to);
+                if (table != null) {
+                    logger.info("{} requests mapped from {}", table.size, rtab);
+                    return table;
+                }
+            } catch (IOException e) {
+                logger.warn("cannot load {}: {}", rtab, e.getMessage());
+            }
+        }
+
+        long t0 = System.currentTimeMillis();
+        Builder builder = new Builder();
+        AccessLogReader reader = new AccessLogReader(format).withTimeRange(from, to);
+        reader.read(log, builder::add);
+        RequestTable table = builder.build();
+        logger.info("{} requests ({} distinct paths) parsed from {} in {} ms, {} invalid lines",
+                table.size, table.paths.length, log, System.currentTimeMillis() - t0, reader.getNumInvalid());
+        try {
+            table.save(rtab, length, head, formatHash, from, to);
+        } catch (IOException e) {
+            logger.warn("cannot save {}: {}", rtab, e.getMessage());
+        }
+        return table;
+    }
+
+    /**
+     * Layout: fixed header, the columns (timestamps, path ids, client ids, statuses, methods) and the dictionaries.
+     * The columns are mapped as is on load, the dictionaries are decoded.
+     */
+    void save(Path rtab, long sourceLength, long headHash, long formatHash, long from, long to) throws IOException {
+        Path tmp = rtab.resolveSibling(rtab.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile()), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceLength);
+            out.writeLong(headHash);
+            out.writeLong(formatHash);
+            out.writeLong(from);
+            out.writeLong(to);
+            out.writeInt(size);
+            out.writeInt(paths.length);
+            out.writeInt(clients.length);
+            out.writeInt(methods.length);
+            for (int i = 0; i < size; i++) out.writeLong(timestamps.get(i));
+            for (int i = 0; i < size; i++) out.writeInt(pathIds.get(i));
+            for (int i = 0; i < size; i++) out.writeInt(clientIds.get(i));
+            for (int i = 0; i < size; i++) out.writeShort(statuses.get(i));
+            for (int i = 0; i < size; i++) out.writeByte(methodCodes.get(i));
+            writeStrings(out, paths);
+            writeStrings(out, clients);
+            writeStrings(out, methods);
+        }
+        Files.move(tmp, rtab, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the table or null if it was built from a different log, format or time range
+     */
+    static RequestTable load(Path rtab, long sourceLength, long headHash, long formatHash, long from, long to) throws IOException {
+        try (FileChannel channel = FileChannel.open(rtab, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != sourceLength
+                    || header.getLong() != headHash || header.getLong() != formatHash
+                    || header.getLong() != from || header.getLong() != to) {
+                return null;
+            }
+            int size = header.getInt();
+            int numPaths = header.getInt();
+            int numClients = header.getInt();
+            int numMethods = header.getInt();
+
+            // mappings stay valid after the channel is closed
+            long pos = HEADER_LENGTH;
+            LongBuffer timestamps = channel.map(FileChannel.MapMode.READ_ONLY, pos, 8L * size).asLongBuffer();
+            pos += 8L * size;
+            IntBuffer pathIds = channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * size).asIntBuffer();
+            pos += 4L * size;
+            IntBuffer clientIds = channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * size).asIntBuffer();
+            pos += 4L * size;
+            ShortBuffer statuses = channel.map(FileChannel.MapMode.READ_ONLY, pos, 2L * size).asShortBuffer();
+            pos += 2L * size;
+            ByteBuffer methodCodes = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+            pos += size;
+
+            channel.position(pos);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            String[] paths = readStrings(in, numPaths);
+            String[] clients = readStrings(in, numClients);
+            String[] methods = readStrings(in, numMethods);
+            return new RequestTable(size, timestamps, pathIds, clientIds, statuses, methodCodes, paths, clients, methods);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        for (String value : values) {
+            // writeUTF is limited to 64K, long urls are not unheard of
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in, int count) throws IOException {
+        String[] values = new String[count];
+        byte[] buf = new byte[256];
+        for (int i = 0; i < count; i++) {
+            int len = in.readInt();
+            if (len > buf.length) buf = new byte[Math.max(len, buf.length * 2)];
+            in.readFully(buf, 0, len);
+            values[i] = new String(buf, 0, len, StandardCharsets.UTF_8);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Compares response bodies with a baseline recorded in an earlier run, e.g. on another environment.
+ * <p>
+ * The agent hashes each body while reading it, so nothing is written to disk per response. If the raw hash
+ * differs from the baseline a normalized hash is computed after stripping volatile markup (CSRF tokens, nonces,
+ * timestamps, comments), a body that differs only in such markup is reported as a normalized match.
+ * The normalized hash of other bodies is only computed when recording a baseline.
+ * The baseline is a tab-delimited file: path, hash, normalized hash.
+ */
+public class ResponseVerifier {
+    private static final Logger logger = LoggerFactory.getLogger(ResponseVerifier.class);
+
+    public static final String ALGORITHM = "SHA-256";
+
+    public static final String[] DEFAULT_VOLATILE_PATTERNS = {
+            "<!--.*?-->",
+            "(?i)<input[^>]+name=\"(:cq_csrf_token|_charset_)\"[^>]*>",
+            "(?i)\\snonce=\"[^\"]*\"",
+            "(?i)\\sdata-[\\w-]*(timestamp|nonce|token)=\"[^\"]*\"",
+            "\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}(\\.\\d+)?(Z|[+-]\\d{2}:?\\d{2})?",
+    };
+
+    public enum Result {
+        MATCH, NORMALIZED_MATCH, MISMATCH, NEW
+    }
+
+    private final Map<String, String[]> baseline = new ConcurrentHashMap<>();
+    private final Map<String, String[]> recorded = new ConcurrentHashMap<>();
+    private final List<Pattern> volatilePatterns = new ArrayList<>();
+    private final AtomicLong[] counts = new AtomicLong[Result.values().length];
+    private boolean recording;
+
+    public ResponseVerifier() {
+        for (String p : DEFAULT_VOLATILE_PATTERNS) {
+            volatilePatterns.add(Pattern.compile(p, Pattern.DOTALL));
+        }
+        for (int i = 0; i < counts.length; i++) counts[i] = new AtomicLong();
+    }
+
+    /**
+     * strip matches of the regex from bodies before computing the normalized hash
+     */
+    public ResponseVerifier withVolatilePattern(String regex) {
+        volatilePatterns.add(Pattern.compile(regex, Pattern.DOTALL));
+        return this;
+    }
+
+    /**
+     * keep the hashes of this run for {@link #save(File)}, otherwise only the counts are kept
+     */
+    public ResponseVerifier withRecording(boolean recording) {
+        this.recording = recording;
+        return this;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public String normalizedHash(String body) {
+        String normalized = body;
+        for (Pattern p : volatilePatterns) {
+            normalized = p.matcher(normalized).replaceAll("");
+        }
+        return toHex(newDigest().digest(normalized.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * record the hashes of a response and compare them with the baseline
+     *
+     * @param url  request url, the host is ignored so that environments can be compared
+     * @param hash hex digest of the raw body
+     */
+    public Result verify(String url, String hash, String body) {
+        String path = UrlTemplates.stripHost(url);
+        String[] expected = baseline.get(path);
+        Result result;
+        String normalized = null;
+        if (expected == null) {
+            result = Result.NEW;
+        } else if (expected[0].equals(hash)) {
+            result = Result.MATCH;
+            normalized = expected[1];
+        } else {
+            normalized = normalizedHash(body);
+            result = expected[1].equals(normalized) ? Result.NORMALIZED_MATCH : Result.MISMATCH;
+        }
+        if (recording) {
+            if (normalized == null) normalized = normalizedHash(body);
+            recorded.put(path, new String[]{hash, normalized});
+        }
+        counts[result.ordinal()].incrementAndGet();
+        return result;
+    }
+
+    public long getCount(Result result) {
+        return counts[result.ordinal()].get();
+    }
+
+    public int getBaselineSize() {
+        return baseline.size();
+    }
+
+    public void load(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] vals = line.split("\t");
+                if (vals.length != 3) throw new IOException("invalid baseline line: " + line);
+                baseline.put(vals[0], new String[]{vals[1], vals[2]});
+            }
+        }
+        logger.info("{} baseline hashes loaded from {}", baseline.size(), file);
+    }
+
+    /**
+     * save the hashes recorded in this run, the file can be used as the baseline of the next run
+     */
+    public void save(File file) throws IOException {
+        if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String[]> e : recorded.entrySet()) {
+                out.write(e.getKey() + "\t" + e.getValue()[0] + "\t" + e.getValue()[1] + "\n");
+            }
+        }
+        logger.info("{} hashes saved in {}", recorded.size(), file);
+    }
+}
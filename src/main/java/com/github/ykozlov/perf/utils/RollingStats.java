@@ -0,0 +1,72 @@
+package com.github.ykozlov.perf.utils;
+
+/**
+ * Per-template statistics over a sliding time window.
+ * <p>
+ * Time is divided into fixed slots kept in a ring buffer. Each slot holds its own {@link TemplateStats},
+ * so a window of any length up to <code>slotMillis * numSlots</code> is obtained by merging the sketches
+ * of the most recent slots. Slots that fall out of the ring are reused, so memory stays bounded.
+ */
+public class RollingStats {
+    private final UrlTemplates templates;
+    private final long slotMillis;
+    private final TemplateStats[] slots;
+    private final long[] slotStart;
+    private long latest;
+
+    public RollingStats(UrlTemplates templates, long slotMillis, int numSlots) {
+        this.templates = templates;
+        this.slotMillis = slotMillis;
+        this.slots = new TemplateStats[numSlots];
+        this.slotStart = new long[numSlots];
+    }
+
+    public synchronized void record(long timestamp, String url, int statusCode, double elapsed) {
+        long start = timestamp - timestamp % slotMillis;
+        int idx = (int) ((start / slotMillis) % slots.length);
+        if (slots[idx] == null || slotStart[idx] != start) {
+            if (slots[idx] != null && slotStart[idx] > start) {
+                // too old to fit in the ring
+                return;
+            }
+            slots[idx] = new TemplateStats(templates);
+            slotStart[idx] = start;
+        }
+        slots[idx].record(url, statusCode, elapsed);
+        latest = Math.max(latest, timestamp);
+    }
+
+    /**
+     * @return timestamp of the most recent recorded request
+     */
+    public synchronized long getLatest() {
+        return latest;
+    }
+
+    public long getSlotMillis() {
+        return slotMillis;
+    }
+
+    /**
+     * @return actual time span covered by a window ending at <code>now</code>, taking into account that
+     * the current slot is only partially filled
+     */
+    public long span(long now, long windowMillis) {
+        return Math.min(windowMillis, Math.max(windowMillis - slotMillis, 0) + now % slotMillis + 1000);
+    }
+
+    /**
+     * merge the slots covering <code>windowMillis</code> up to and including the slot of <code>now</code>
+     */
+    public synchronized TemplateStats window(long now, long windowMillis) {
+        TemplateStats merged = new TemplateStats(templates);
+        long end = now - now % slotMillis;
+        long start = end - Math.max(windowMillis - slotMillis, 0);
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null && slotStart[i] >= start && slotStart[i] <= end) {
+                merged.merge(slots[i]);
+            }
+        }
+        return merged;
+    }
+}
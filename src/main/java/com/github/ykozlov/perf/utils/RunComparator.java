@@ -0,0 +1,347 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two runs, e.g. AccessLogReplayer reports before and after a release, and ranks
+ * URLs or URL templates by latency regression.
+ * <p>
+ * Both inputs are streamed row by row and aggregated into per-key quantile sketches, so memory depends on
+ * the number of keys, not on the number of rows. Differences are tested with the Mann-Whitney U test
+ * computed over the sketch buckets, the difference of means is reported with a 95% confidence interval.
+ */
+public class RunComparator {
+    private static final Logger logger = LoggerFactory.getLogger(RunComparator.class);
+
+    static final List<String> PATH_COLUMNS = Arrays.asList("path", "url", "template");
+    static final List<String> TIME_COLUMNS = Arrays.asList("total time", "elapsed", "time");
+    static final List<String> STATUS_COLUMNS = Arrays.asList("status");
+
+    static final String[] COLUMNS = {
+            "Key", "Base Count", "Count", "Base p50", "p50", "p50 Change %", "Base p95", "p95", "p95 Change %",
+            "Base p99", "p99", "Base Mean", "Mean", "Mean Change", "95% CI Low", "95% CI High",
+            "Base Error %", "Error %", "P(slower)", "p-value", "Added Time, s"};
+
+    static void usage() {
+        System.err.println("Usage: com.github.ykozlov.perf.utils.RunComparator [options...] <baseline> <current>");
+        System.err.println("  Inputs can be AccessLogReplayer or RequestLogAnalyzer reports (.xlsx, .txt, .csv)");
+        System.err.println("  or per-template statistics saved with --stats (.stats)");
+        System.err.println("  --by url|template              Join rows by url or by url template, default is template");
+        System.err.println("  --template-rule regex=repl     Custom url template rule applied before the built-in normalization");
+        System.err.println("  --sheet name                   Sheet to read from .xlsx inputs, default is the first sheet");
+        System.err.println("  --alpha p                      Significance level, default is 0.01");
+        System.err.println("  --min-count N                  Min. number of requests on each side to compare a key, default is 30");
+        System.err.println("  --threshold pct                Min. change of median or mean to report, default is 5%");
+        System.err.println("  --max-keys N                   Max. number of keys to keep in memory per side, default is 100000");
+        System.err.println("  --saveAs file                  Save the comparison in the given file, default is comparison.xlsx");
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<File> inputs = new ArrayList<>();
+        boolean byTemplate = true;
+        UrlTemplates urlTemplates = new UrlTemplates();
+        String sheet = null;
+        double alpha = 0.01;
+        int minCount = 30;
+        double threshold = 5;
+        int maxKeys = 100000;
+        String saveAs = "comparison.xlsx";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--by":
+                    byTemplate = "template".equals(args[++i]);
+                    break;
+                case "--template-rule":
+                    urlTemplates.withRule(args[++i]);
+                    break;
+                case "--sheet":
+                    sheet = args[++i];
+                    break;
+                case "--alpha":
+                    alpha = Double.parseDouble(args[++i]);
+                    break;
+                case "--min-count":
+                    minCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(args[++i]);
+                    break;
+                case "--max-keys":
+                    maxKeys = Integer.parseInt(args[++i]);
+                    break;
+                case "--saveAs":
+                    saveAs = args[++i];
+                    break;
+                default:
+                    if (args[i].startsWith("-"))
+                        throw new IllegalArgumentException("unknown input argument: " + args[i]);
+                    inputs.add(new File(args[i]));
+                    break;
+            }
+        }
+        if (inputs.size() != 2) {
+            usage();
+            return;
+        }
+
+        TemplateStats baseline = load(inputs.get(0), sheet, byTemplate, urlTemplates, maxKeys);
+        TemplateStats current = load(inputs.get(1), sheet, byTemplate, urlTemplates, maxKeys);
+
+        Report all = newReport();
+        List<Comparison> regressions = new ArrayList<>();
+        List<Comparison> improvements = new ArrayList<>();
+        for (TemplateStats.Entry base : baseline.getEntries()) {
+            TemplateStats.Entry curr = current.get(base.getTemplate());
+            if (curr == null) {
+                addRow(all, base.getTemplate(), base, null, null);
+                continue;
+            }
+            Comparison c = new Comparison(base, curr);
+            addRow(all, base.getTemplate(), base, curr, c);
+            if (base.getCount() < minCount || curr.getCount() < minCount || c.pValue >= alpha) {
+                continue;
+            }
+            double medianChange = Math.abs(c.p50Change);
+            double meanChange = base.getMean() == 0 ? 0 : Math.abs(c.meanDelta * 100 / base.getMean());
+            if (medianChange < threshold && meanChange < threshold) {
+                continue;
+            }
+            if (c.meanDelta > 0) regressions.add(c);
+            else improvements.add(c);
+        }
+        for (TemplateStats.Entry curr : current.getEntries()) {
+            if (baseline.get(curr.getTemplate()) == null) {
+                addRow(all, curr.getTemplate(), null, curr, null);
+            }
+        }
+
+        // rank by the total time the change adds to (or saves from) the current run
+        regressions.sort((c1, c2) -> Double.compare(c2.addedTime(), c1.addedTime()));
+        improvements.sort((c1, c2) -> Double.compare(c1.addedTime(), c2.addedTime()));
+        Report regressionsReport = newReport();
+        for (Comparison c : regressions) {
+            addRow(regressionsReport, c.base.getTemplate(), c.base, c.curr, c).setRowStyle(Report.STYLE_BAD);
+        }
+        Report improvementsReport = newReport();
+        for (Comparison c : improvements) {
+            addRow(improvementsReport, c.base.getTemplate(), c.base, c.curr, c).setRowStyle(Report.STYLE_GOOD);
+        }
+        logger.info("{} keys in baseline, {} keys in current run, {} regressions, {} improvements",
+                baseline.size(), current.size(), regressions.size(), improvements.size());
+
+        Map<String, Report> sheets = new LinkedHashMap<>();
+        sheets.put("regressions", regressionsReport);
+        sheets.put("improvements", improvementsReport);
+        sheets.put("all", all);
+        Report.save(saveAs, sheets);
+    }
+
+    static TemplateStats load(File file, String sheet, boolean byTemplate, UrlTemplates urlTemplates, int maxKeys) throws IOException {
+        TemplateStats stats = new TemplateStats(urlTemplates);
+        stats.setMaxTemplates(maxKeys);
+        if (file.getName().endsWith(".stats")) {
+            stats.load(file);
+            return stats;
+        }
+
+        int[] cols = {-1, -1, -1};
+        long[] numRows = {0};
+        Report.stream(file, sheet, (columns, row) -> {
+            if (numRows[0]++ == 0) {
+                cols[0] = indexOf(columns, PATH_COLUMNS);
+                cols[1] = indexOf(columns, TIME_COLUMNS);
+                cols[2] = indexOf(columns, STATUS_COLUMNS);
+                if (cols[0] == -1 || cols[1] == -1) {
+                    throw new IOException(file + ": cannot find path and time columns in " + Arrays.toString(columns));
+                }
+            }
+            String path = row.getValue(cols[0]);
+            String time = row.getValue(cols[1]);
+            if (path == null || time == null) return;
+            double elapsed;
+            try {
+                elapsed = Double.parseDouble(time);
+            } catch (NumberFormatException e) {
+                // failed requests have the error message instead of time
+                return;
+            }
+            String status = cols[2] == -1 ? null : row.getValue(cols[2]);
+            int statusCode = status == null ? 200 : (int) Double.parseDouble(status);
+            path = unwrapHyperlink(path);
+            if (byTemplate) stats.record(path, statusCode, elapsed);
+            else stats.recordKey(UrlTemplates.stripHost(path), statusCode, elapsed);
+        });
+        logger.info("{}: {} rows, {} keys", file, numRows[0], stats.size());
+        return stats;
+    }
+
+    static int indexOf(String[] columns, List<String> candidates) {
+        for (String name : candidates) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] != null && columns[i].trim().equalsIgnoreCase(name)) return i;
+            }
+        }
+        return -1;
+    }
+
+    static String unwrapHyperlink(String value) {
+        if (value.startsWith("=")) value = value.substring(1);
+        if (value.startsWith("HYPERLINK(\"") && value.endsWith("\")")) {
+            value = value.substring("HYPERLINK(\"".length(), value.length() - 2);
+        }
+        return value;
+    }
+
+    static Report newReport() {
+        Report report = new Report();
+        report.setColumns(COLUMNS);
+        report.setColumnWidth(0, 70 * 254);
+        report.freezeTopRow();
+        return report;
+    }
+
+    static Report.Row addRow(Report report, String key, TemplateStats.Entry base, TemplateStats.Entry curr, Comparison c) {
+        Report.Row row = report.createRow();
+        row.setValue(0, key);
+        if (base != null) {
+            QuantileSketch s = base.getSketch();
+            row.setValue(1, base.getCount());
+            row.setValue(3, Math.round(s.quantile(0.5)));
+            row.setValue(6, Math.round(s.quantile(0.95)));
+            row.setValue(9, Math.round(s.quantile(0.99)));
+            row.setValue(11, Math.round(base.getMean()));
+            row.setValue(16, String.format("%.2f", base.getErrors() * 100. / base.getCount()));
+        }
+        if (curr != null) {
+            QuantileSketch s = curr.getSketch();
+            row.setValue(2, curr.getCount());
+            row.setValue(4, Math.round(s.quantile(0.5)));
+            row.setValue(7, Math.round(s.quantile(0.95)));
+            row.setValue(10, Math.round(s.quantile(0.99)));
+            row.setValue(12, Math.round(curr.getMean()));
+            row.setValue(17, String.format("%.2f", curr.getErrors() * 100. / curr.getCount()));
+        }
+        if (c != null) {
+            row.setValue(5, String.format("%.1f", c.p50Change));
+            row.setValue(8, String.format("%.1f", c.p95Change));
+            row.setValue(13, String.format("%.1f", c.meanDelta));
+            row.setValue(14, String.format("%.1f", c.ciLow));
+            row.setValue(15, String.format("%.1f", c.ciHigh));
+            row.setValue(18, String.format("%.3f", c.probSlower));
+            row.setValue(19, String.format("%.2e", c.pValue));
+            row.setValue(20, String.format("%.1f", c.addedTime() / 1000));
+        }
+        return row;
+    }
+
+    /**
+     * Statistics of a key present in both runs
+     */
+    static class Comparison {
+        final TemplateStats.Entry base;
+        final TemplateStats.Entry curr;
+        double p50Change;
+        double p95Change;
+        double meanDelta;
+        double ciLow;
+        double ciHigh;
+        double probSlower;
+        double pValue;
+
+        Comparison(TemplateStats.Entry base, TemplateStats.Entry curr) {
+            this.base = base;
+            this.curr = curr;
+            QuantileSketch a = base.getSketch();
+            QuantileSketch b = curr.getSketch();
+            p50Change = change(a.quantile(0.5), b.quantile(0.5));
+            p95Change = change(a.quantile(0.95), b.quantile(0.95));
+
+            meanDelta = curr.getMean() - base.getMean();
+            double se = Math.sqrt(variance(a, base.getMean()) / base.getCount() + variance(b, curr.getMean()) / curr.getCount());
+            ciLow = meanDelta - 1.96 * se;
+            ciHigh = meanDelta + 1.96 * se;
+
+            mannWhitney(a, b);
+        }
+
+        /**
+         * time added to the current run by the change, ms
+         */
+        double addedTime() {
+            return meanDelta * curr.getCount();
+        }
+
+        /**
+         * Mann-Whitney U test over sketch buckets: values falling into the same bucket are treated as ties.
+         * Sets the probability that a random request of the current run is slower than one of the baseline
+         * and the two-sided p-value (normal approximation with tie correction).
+         */
+        void mannWhitney(QuantileSketch a, QuantileSketch b) {
+            List<long[]> bucketsA = buckets(a);
+            List<long[]> bucketsB = buckets(b);
+            double na = a.getCount();
+            double nb = b.getCount();
+            double n = na + nb;
+
+            double u = 0;
+            double ties = 0;
+            long belowA = 0;
+            int i = 0, j = 0;
+            while (i < bucketsA.size() || j < bucketsB.size()) {
+                long idxA = i < bucketsA.size() ? bucketsA.get(i)[0] : Long.MAX_VALUE;
+                long idxB = j < bucketsB.size() ? bucketsB.get(j)[0] : Long.MAX_VALUE;
+                long ca = 0, cb = 0;
+                if (idxA <= idxB) ca = bucketsA.get(i++)[1];
+                if (idxB <= idxA) cb = bucketsB.get(j++)[1];
+                u += cb * (belowA + 0.5 * ca);
+                belowA += ca;
+                double t = ca + cb;
+                ties += t * t * t - t;
+            }
+            probSlower = u / (na * nb);
+            double var = na * nb / 12 * ((n + 1) - ties / (n * (n - 1)));
+            if (var <= 0) {
+                pValue = 1;
+                return;
+            }
+            double z = (u - na * nb / 2) / Math.sqrt(var);
+            pValue = 2 * (1 - normalCdf(Math.abs(z)));
+        }
+
+        private static List<long[]> buckets(QuantileSketch sketch) {
+            List<long[]> list = new ArrayList<>();
+            sketch.forEachBucket((index, value, count) -> list.add(new long[]{index, count}));
+            return list;
+        }
+
+        private static double variance(QuantileSketch sketch, double mean) {
+            double[] sum = {0};
+            sketch.forEachBucket((index, value, count) -> sum[0] += count * (value - mean) * (value - mean));
+            long n = sketch.getCount();
+            return n < 2 ? 0 : sum[0] / (n - 1);
+        }
+
+        private static double change(double base, double curr) {
+            return base == 0 ? 0 : (curr - base) * 100 / base;
+        }
+    }
+
+    /**
+     * standard normal CDF, Abramowitz and Stegun 7.1.26 (absolute error below 1.5e-7)
+     */
+    static double normalCdf(double z) {
+        double x = Math.abs(z) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * x);
+        double erf = 1 - (((((1.061405429 * t - 1.453152027) * t) + 1.421413741) * t - 0.284496736) * t + 0.254829592) * t * Math.exp(-x * x);
+        return z >= 0 ? 0.5 * (1 + erf) : 0.5 * (1 - erf);
+    }
+}
@@ -0,0 +1,187 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays access log requests as client sessions.
+ * <p>
+ * Requests are grouped by client (IP and User-Agent) into sessions, a new session starts when the client
+ * was idle longer than the session gap. Each session is replayed as a sequential chain: the next request is
+ * scheduled on the agent when the previous one completes, after the recorded think time scaled by a factor.
+ * Sessions start at their recorded (scaled) offsets and run concurrently without holding a thread while waiting.
+ * Each running session holds a credit of the in-flight limit of the agent, a session that would exceed the limit
+ * starts late, when another one ends.
+ */
+public class SessionReplay {
+    private static final Logger logger = LoggerFactory.getLogger(SessionReplay.class);
+
+    public static class Session {
+        final String client;
+        final long start;
+        String[] urls = new String[8];
+        long[] offsets = new long[8];
+        int size;
+
+        Session(String client, long start) {
+            this.client = client;
+            this.start = start;
+        }
+
+        void add(String url, long offset) {
+            if (size == urls.length) {
+                urls = Arrays.copyOf(urls, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            urls[size] = url;
+            offsets[size] = offset;
+            size++;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    private final AEMAgent agent;
+    private final double thinkScale;
+    private final AtomicInteger numRequests = new AtomicInteger();
+    private CountDownLatch remaining;
+    private volatile boolean stopped;
+
+    /**
+     * @param thinkScale multiplier applied to the recorded think times and session start offsets,
+     *                   e.g. 0.5 replays twice as fast, 0 sends each chain back to back
+     */
+    public SessionReplay(AEMAgent agent, double thinkScale) {
+        this.agent = agent;
+        this.thinkScale = thinkScale;
+    }
+
+    /**
+     * Group successful GET requests into sessions, requests are expected in time order
+     *
+     * @param gapMillis max. idle time within a session
+     */
+    public static List<Session> group(RequestTable table, long gapMillis) {
+        List<Session> sessions = new ArrayList<>();
+        Map<String, Session> active = new HashMap<>();
+        Map<String, Long> lastSeen = new HashMap<>();
+        for (int i = 0; i < table.size(); i++) {
+            if (!"GET".equals(table.getMethod(i)) || table.getStatus(i) != 200) continue;
+
+            String client = table.getClient(i);
+            long ts = Math.max(0, table.getTimestamp(i));
+            Session session = active.get(client);
+            Long last = lastSeen.get(client);
+            if (session == null || ts - last > gapMillis) {
+                session = new Session(client, ts);
+                sessions.add(session);
+                active.put(client, session);
+            }
+            lastSeen.put(client, ts);
+            session.add(table.getPath(i), ts - session.start);
+        }
+        return sessions;
+    }
+
+    /**
+     * schedule the first request of each session, the following requests are chained on completion.
+     * Blocks while the in-flight limit of the agent is reached.
+     */
+    public void start(List<Session> sessions) {
+        remaining = new CountDownLatch(sessions.size());
+        long origin = Long.MAX_VALUE;
+        for (Session s : sessions) origin = Math.min(origin, s.start);
+        long started = System.currentTimeMillis();
+        int scheduled = 0;
+        try {
+            for (Session s : sessions) {
+                long offset = (long) ((s.start - origin) * thinkScale);
+                agent.acquireChain();
+                long delay = Math.max(0, offset - (System.currentTimeMillis() - started));
+                try {
+                    agent.scheduleRequest(() -> execute(s, 0), delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    agent.chainDone();
+                    throw e;
+                }
+                scheduled++;
+            }
+        } catch (RejectedExecutionException e) {
+            logger.warn("{} sessions not started: {}", sessions.size() - scheduled, e.getMessage());
+            for (int i = scheduled; i < sessions.size(); i++) remaining.countDown();
+        }
+        logger.info("{} sessions scheduled", scheduled);
+    }
+
+    private void finish() {
+        agent.chainDone();
+        remaining.countDown();
+    }
+
+    private void execute(Session session, int idx) {
+        if (stopped) {
+            finish();
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        try {
+            numRequests.incrementAndGet();
+            agent.get(session.urls[idx]);
+        } catch (Exception e) {
+            // already logged and reported by the agent, the session goes on like a browser would
+        }
+        if (idx + 1 == session.size) {
+            finish();
+            return;
+        }
+        // the recorded gap includes the server time of the previous request, only the rest is think time
+        long thinkTime = (long) ((session.offsets[idx + 1] - session.offsets[idx]) * thinkScale);
+        long delay = Math.max(0, thinkTime - (System.currentTimeMillis() - t0));
+        try {
+            agent.scheduleRequest(() -> execute(session, idx + 1), delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            logger.warn("session {} aborted: {}", session.client, e.getMessage());
+            finish();
+        }
+    }
+
+    /**
+     * wait until all sessions complete or the agent is aborted
+     *
+     * @param seconds max. time to wait, 0 to wait indefinitely
+     * @return false if the time elapsed before all sessions completed, the remaining sessions are stopped
+     */
+    public boolean await(int seconds) throws InterruptedException {
+        long deadline = seconds > 0 ? System.currentTimeMillis() + seconds * 1000L : Long.MAX_VALUE;
+        boolean done;
+        // sessions cancelled by an abort never count down
+        while (!(done = remaining.await(1, TimeUnit.SECONDS))) {
+            if (agent.isAborted() || System.currentTimeMillis() >= deadline) break;
+        }
+        if (!done) {
+            stopped = true;
+            logger.info("{} sessions still running, stopping", remaining.getCount());
+        }
+        return done;
+    }
+
+    public int getNumRequests() {
+        return numRequests.get();
+    }
+}
@@ -0,0 +1,221 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-template request statistics: count, error count, latency sum and a mergeable quantile sketch.
+ * <p>
+ * Memory grows with the number of distinct templates, not with the number of recorded requests.
+ * Once <code>maxTemplates</code> is reached, requests of unseen templates are accounted under {@link #OTHER}.
+ * Tables can be saved to a tab-delimited file and merged with tables of other log files or runs.
+ */
+public class TemplateStats implements AEMAgent.RequestListener {
+    private static final Logger logger = LoggerFactory.getLogger(TemplateStats.class);
+
+    public static final String OTHER = "{other}";
+    public static final String[] COLUMNS = {
+            "Template", "Count", "Errors", "Error %", "Mean", "p50", "p90", "p95", "p99", "Max"};
+
+    public static class Entry {
+        final String template;
+        long count;
+        long errors;
+        double sum;
+        final QuantileSketch sketch;
+
+        Entry(String template, QuantileSketch sketch) {
+            this.template = template;
+            this.sketch = sketch;
+        }
+
+        synchronized void record(boolean error, double elapsed) {
+            count++;
+            if (error) errors++;
+            sum += elapsed;
+            sketch.add(elapsed);
+        }
+
+        synchronized void merge(Entry other) {
+            count += other.count;
+            errors += other.errors;
+            sum += other.sum;
+            sketch.merge(other.sketch);
+        }
+
+        public String getTemplate() {
+            return template;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getErrors() {
+            return errors;
+        }
+
+        public synchronized double getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        public QuantileSketch getSketch() {
+            return sketch;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final UrlTemplates templates;
+    private final double accuracy;
+    private int maxTemplates = 100000;
+    private volatile boolean overflowReported;
+
+    public TemplateStats() {
+        this(new UrlTemplates());
+    }
+
+    public TemplateStats(UrlTemplates templates) {
+        this(templates, QuantileSketch.DEFAULT_ACCURACY);
+    }
+
+    public TemplateStats(UrlTemplates templates, double accuracy) {
+        this.templates = templates;
+        this.accuracy = accuracy;
+    }
+
+    public void setMaxTemplates(int maxTemplates) {
+        this.maxTemplates = maxTemplates;
+    }
+
+    public UrlTemplates getTemplates() {
+        return templates;
+    }
+
+    /**
+     * A request is counted as an error if it failed (status 0) or the status code is not 2xx/3xx
+     */
+    public static boolean isError(int statusCode) {
+        return statusCode < 200 || statusCode >= 400;
+    }
+
+    public void record(String url, int statusCode, double elapsed) {
+        entry(templates.normalize(url)).record(isError(statusCode), elapsed);
+    }
+
+    /**
+     * record a request under the given key as is, without url normalization
+     */
+    public void recordKey(String key, int statusCode, double elapsed) {
+        entry(key).record(isError(statusCode), elapsed);
+    }
+
+    @Override
+    public void completed(String method, String url, int statusCode, long elapsed, long bytes) {
+        record(url, statusCode, elapsed);
+    }
+
+    private Entry entry(String template) {
+        Entry e = entries.get(template);
+        if (e == null) {
+            if (entries.size() >= maxTemplates) {
+                if (!overflowReported) {
+                    overflowReported = true;
+                    logger.warn("more than {} url templates, new templates are accounted as {}", maxTemplates, OTHER);
+                }
+                template = OTHER;
+            }
+            e = entries.computeIfAbsent(template, t -> new Entry(t, new QuantileSketch(accuracy)));
+        }
+        return e;
+    }
+
+    public Entry get(String template) {
+        return entries.get(template);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public List<Entry> getEntries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort((e1, e2) -> Long.compare(e2.getCount(), e1.getCount()));
+        return list;
+    }
+
+    public void merge(TemplateStats other) {
+        for (Entry e : other.entries.values()) {
+            entry(e.template).merge(e);
+        }
+    }
+
+    public Report toReport() {
+        Report report = new Report();
+        report.setColumns(COLUMNS);
+        report.setColumnWidth(0, 70 * 254);
+        for (Entry e : getEntries()) {
+            Report.Row row = report.createRow();
+            QuantileSketch s = e.getSketch();
+            row.setValue(0, e.getTemplate());
+            row.setValue(1, e.getCount());
+            row.setValue(2, e.getErrors());
+            row.setValue(3, String.format("%.2f", e.getCount() == 0 ? 0. : e.getErrors() * 100. / e.getCount()));
+            row.setValue(4, Math.round(e.getMean()));
+            row.setValue(5, Math.round(s.quantile(0.5)));
+            row.setValue(6, Math.round(s.quantile(0.9)));
+            row.setValue(7, Math.round(s.quantile(0.95)));
+            row.setValue(8, Math.round(s.quantile(0.99)));
+            row.setValue(9, Math.round(s.getMax()));
+            if (e.getErrors() > 0) row.setCellStyle(2, Report.STYLE_BAD);
+        }
+        return report;
+    }
+
+    /**
+     * save in a tab-delimited format: template, count, errors, sum, encoded sketch
+     */
+    public void save(File file) throws IOException {
+        if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (Entry e : getEntries()) {
+                synchronized (e) {
+                    out.write(e.template + "\t" + e.count + "\t" + e.errors + "\t" + e.sum + "\t" + e.sketch.encode() + "\n");
+                }
+            }
+        }
+        logger.info("{} templates saved in {}", entries.size(), file);
+    }
+
+    /**
+     * load a table saved by {@link #save(File)} and merge it into this one
+     */
+    public void load(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] vals = line.split("\t");
+                if (vals.length != 5) throw new IOException("invalid template stats line: " + line);
+                Entry e = new Entry(vals[0], QuantileSketch.decode(vals[4]));
+                e.count = Long.parseLong(vals[1]);
+                e.errors = Long.parseLong(vals[2]);
+                e.sum = Double.parseDouble(vals[3]);
+                entry(e.template).merge(e);
+            }
+        }
+    }
+}
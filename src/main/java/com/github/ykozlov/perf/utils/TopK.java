@@ -0,0 +1,143 @@
+package com.github.ykozlov.perf.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Heavy hitters with the Space-Saving algorithm.
+ * <p>
+ * At most <code>capacity</code> keys are tracked. When a new key arrives and the table is full, it replaces the key
+ * with the smallest count and inherits that count as its overestimation error, so the count of any tracked key is
+ * within <code>error</code> of its true frequency. Counters are kept in an indexed min-heap, updates are O(log capacity).
+ * <p>
+ * Each counter can carry a payload, e.g. a per-key sketch, which is reset when the counter is taken over by a new key.
+ */
+public class TopK<V> {
+
+    public static class Counter<V> {
+        String key;
+        long count;
+        long error;
+        V value;
+        int heapIndex;
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return max. overestimation of the count
+         */
+        public long getError() {
+            return error;
+        }
+
+        public V getValue() {
+            return value;
+        }
+    }
+
+    private final int capacity;
+    private final Supplier<V> factory;
+    private final Map<String, Counter<V>> counters;
+    private final List<Counter<V>> heap;
+
+    public TopK(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param factory creates the payload of a new counter, may be null
+     */
+    public TopK(int capacity, Supplier<V> factory) {
+        this.capacity = capacity;
+        this.factory = factory;
+        this.counters = new HashMap<>(capacity * 2);
+        this.heap = new ArrayList<>(capacity);
+    }
+
+    public Counter<V> add(String key) {
+        return add(key, 1);
+    }
+
+    /**
+     * @return the counter of the key
+     */
+    public Counter<V> add(String key, long n) {
+        Counter<V> c = counters.get(key);
+        if (c == null) {
+            if (heap.size() < capacity) {
+                c = new Counter<>();
+                c.value = factory == null ? null : factory.get();
+                c.heapIndex = heap.size();
+                heap.add(c);
+            } else {
+                c = heap.get(0);
+                counters.remove(c.key);
+                c.error = c.count;
+                c.value = factory == null ? null : factory.get();
+            }
+            c.key = key;
+            counters.put(key, c);
+            siftUp(c.heapIndex);
+        }
+        c.count += n;
+        siftDown(c.heapIndex);
+        return c;
+    }
+
+    public Counter<V> get(String key) {
+        return counters.get(key);
+    }
+
+    public int size() {
+        return heap.size();
+    }
+
+    /**
+     * @return up to n counters with the highest counts, in descending order
+     */
+    public List<Counter<V>> top(int n) {
+        List<Counter<V>> list = new ArrayList<>(heap);
+        list.sort((c1, c2) -> Long.compare(c2.count, c1.count));
+        return list.subList(0, Math.min(n, list.size()));
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heap.get(parent).count <= heap.get(i).count) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        int size = heap.size();
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) break;
+            int right = left + 1;
+            int smallest = right < size && heap.get(right).count < heap.get(left).count ? right : left;
+            if (heap.get(i).count <= heap.get(smallest).count) break;
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Counter<V> ci = heap.get(i);
+        Counter<V> cj = heap.get(j);
+        heap.set(i, cj);
+        heap.set(j, ci);
+        ci.heapIndex = j;
+        cj.heapIndex = i;
+    }
+}
@@ -0,0 +1,520 @@
+package com.github.ykozlov.perf.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites urls with an ordered list of regex rules, e.g. vanity urls or mapping hosts between environments.
+ * The first rule whose replacement changes the url wins.
+ * <p>
+ * Running every regex on every url doesn't scale to hundreds of rules, so the rules that can possibly match are
+ * found first by the literal text a match requires:
+ * <ul>
+ *     <li>rules anchored with ^ and starting with a literal, e.g. {@code ^/content/vanity/}, are indexed by that
+ *     prefix in a trie and are candidates if the url starts with it</li>
+ *     <li>other rules that require a literal, e.g. {@code \.html$}, are candidates if a combined Aho-Corasick
+ *     automaton finds it anywhere in the url</li>
+ *     <li>rules without a usable literal are always candidates</li>
+ * </ul>
+ * Only the candidates are run, in the order of the rules. Results are memoized in a bounded {@link LruCache}
+ * as replayed logs repeat the same urls. {@link #main(String[])} checks that the result is the same as trying every
+ * rule in order.
+ */
+public class UrlRewriter {
+
+    /**
+     * rules checked by {@link #main(String[])} if none are given, each exercises a case of {@link #literals(Pattern)}
+     */
+    static final String[] SAMPLE_RULES = {
+            "^/content/we-retail/(en|fr)/", "\\.html$", "^/a?b/", "colou?r", "(?i)^/CONTENT/X", "^/x{0,2}y/",
+            "\\Qa.b\\E+c", "^https?://author\\.", "[abc]+def", "^/p(\\d+)\\.html", "foo|bar", "^/content/dam/.*\\.jpg$",
+            "ab*c/", "^\\Q/q.x\\E", "x(?=yz)", "/(?:vanity)/", "\\bmen\\b", "^/de/", "\\?a=1\\b", "(?m)^/content/p1",
+            "^/vanity/v12(/|$)", "/legacy-7\\.html", "[]x]yz", "a{2,}b", "/(?x) s k u"};
+
+    static final String[] SAMPLE_PARTS = {
+            "/content", "/we-retail", "/en", "/fr", "/p1", ".html", "/vanity", "/v12", "/legacy-7.html", "/a", "b", "/x",
+            "xy", "y/", "colour", "color", "a.bc", "a.bbc", "aadef", "/dam", ".jpg", "abbbc/", "/q.x", "xyz", "/vanity/",
+            " men ", "/de/", "?a=1", "http://author.", "https://author.", "X", "/x/fOo/y", "/CONTENT/X", "]yz", "aab",
+            "/sku"};
+
+    static class Rule {
+        final Pattern pattern;
+        final String replacement;
+
+        Rule(Pattern pattern, String replacement) {
+            this.pattern = pattern;
+            this.replacement = replacement;
+        }
+    }
+
+    static class Node {
+        final Map<Character, Node> next = new HashMap<>();
+        final BitSet rules = new BitSet();
+        Node fail;
+    }
+
+    /**
+     * literals a match of a pattern requires, null if none could be determined
+     */
+    static class Literals {
+        String prefix;
+        String required;
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final Node prefixes = new Node();
+    private final Node literals = new Node();
+    private final BitSet always = new BitSet();
+    private final LruCache<String, String> memo;
+
+    /**
+     * @param rules    patterns and their replacements in the order to apply them
+     * @param memoSize max. number of urls to remember the result for
+     */
+    public UrlRewriter(Map<Pattern, String> rules, int memoSize) {
+        for (Map.Entry<Pattern, String> e : rules.entrySet()) {
+            int idx = this.rules.size();
+            this.rules.add(new Rule(e.getKey(), e.getValue()));
+            Literals lit = literals(e.getKey());
+            if (lit != null && lit.prefix != null && !lit.prefix.isEmpty()) {
+                add(prefixes, lit.prefix, idx);
+            } else if (lit != null && lit.required != null && lit.required.length() > 1) {
+                add(literals, lit.required, idx);
+            } else {
+                always.set(idx);
+            }
+        }
+        link(literals);
+        memo = new LruCache<>(memoSize);
+    }
+
+    public UrlRewriter(Map<Pattern, String> rules) {
+        this(rules, 10000);
+    }
+
+    /**
+     * read rules from a file with a regex and its replacement separated by a tab on each line,
+     * blank lines and lines starting with # are skipped
+     */
+    public static Map<Pattern, String> readRules(File file) throws IOException {
+        Map<Pattern, String> rules = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) continue;
+                int idx = line.indexOf('\t');
+                if (idx <= 0) {
+                    throw new IllegalArgumentException("invalid rewrite rule at line " + lineNumber
+                            + " of " + file + ", expected regex<TAB>replacement: " + line);
+                }
+                rules.put(Pattern.compile(line.substring(0, idx)), line.substring(idx + 1));
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * @return index of the first = of a regex=replacement rule that isn't escaped with a backslash or part of a
+     * lookaround, so that the replacement can contain =, e.g. <code>^/old$=/new?lang=en</code>, and the regex can
+     * match it as \=
+     */
+    static int ruleSeparator(String rule) {
+        for (int i = 0; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '=' && !rule.startsWith("(?", i - 2) && !rule.startsWith("(?<", i - 3)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    /**
+     * @return the url rewritten by the first rule that changes it, or the url itself
+     */
+    public String rewrite(String url) {
+        if (rules.isEmpty()) return url;
+        String result = memo.get(url);
+        if (result == null) {
+            result = apply(url);
+            memo.put(url, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the url rewritten by trying every rule in order, the reference for {@link #apply(String)}
+     */
+    String applyAll(String url) {
+        for (Rule rule : rules) {
+            String s = rule.pattern.matcher(url).replaceAll(rule.replacement);
+            if (!s.equals(url)) return s;
+        }
+        return url;
+    }
+
+    String apply(String url) {
+        BitSet candidates = candidates(url);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            Rule rule = rules.get(i);
+            Matcher m = rule.pattern.matcher(url);
+            if (!m.find()) continue;
+            String s = m.replaceAll(rule.replacement);
+            if (!s.equals(url)) return s;
+        }
+        return url;
+    }
+
+    /**
+     * @return indexes of the rules that may match the url
+     */
+    BitSet candidates(String url) {
+        BitSet candidates = (BitSet) always.clone();
+        Node node = prefixes;
+        for (int i = 0; i < url.length(); i++) {
+            node = node.next.get(url.charAt(i));
+            if (node == null) break;
+            candidates.or(node.rules);
+        }
+        node = literals;
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            Node n = node.next.get(c);
+            while (n == null && node != literals) {
+                node = node.fail;
+                n = node.next.get(c);
+            }
+            node = n == null ? literals : n;
+            // the output of a node includes those of its fail chain, merged by link()
+            candidates.or(node.rules);
+        }
+        return candidates;
+    }
+
+    static void usage() {
+        System.err.println("Usage: com.github.ykozlov.perf.utils.UrlRewriter [options...] [<access log>]");
+        System.err.println("  Checks that the indexed rules rewrite urls the same way as trying every rule in order.");
+        System.err.println("  Without rules, built-in rules for the edge cases of the literal extraction are checked.");
+        System.err.println("  Without a log, urls are generated from the literals of the rules.");
+        System.err.println("  --rewrite regex=repl           Rule to check, can be repeated");
+        System.err.println("  --rewrite-file file            Read rules from a file, one regex<TAB>replacement per line");
+        System.err.println("  --log-format name|pattern      combined, dispatcher (default), cdn or an Apache LogFormat string");
+        System.err.println("  --urls N                       Number of urls to generate, default is 100000");
+        System.err.println("  --help                         Print this help");
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<Pattern, String> rules = new LinkedHashMap<>();
+        AccessLogFormat format = AccessLogFormat.DISPATCHER;
+        int numUrls = 100000;
+        Path log = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rewrite":
+                    String rule = args[++i];
+                    int idx = ruleSeparator(rule);
+                    if (idx <= 0) throw new IllegalArgumentException("invalid rewrite rule, expected regex=replacement: " + rule);
+                    rules.put(Pattern.compile(rule.substring(0, idx)), rule.substring(idx + 1));
+                    break;
+                case "--rewrite-file":
+                    rules.putAll(readRules(new File(args[++i])));
+                    break;
+                case "--log-format":
+                    format = AccessLogFormat.forName(args[++i]);
+                    break;
+                case "--urls":
+                    numUrls = Integer.parseInt(args[++i]);
+                    break;
+                case "--help":
+                    usage();
+                    return;
+                default:
+                    if (args[i].startsWith("-")) throw new IllegalArgumentException("unknown input argument: " + args[i]);
+                    log = Paths.get(args[i]);
+                    break;
+            }
+        }
+        if (rules.isEmpty()) {
+            for (String re : SAMPLE_RULES) rules.put(Pattern.compile(re), "[" + rules.size() + "]");
+            rules.put(Pattern.compile("X", Pattern.LITERAL), "[literal]");
+            rules.put(Pattern.compile("Foo", Pattern.LITERAL | Pattern.CASE_INSENSITIVE), "[literal-i]");
+        }
+
+        UrlRewriter rewriter = new UrlRewriter(rules, 1);
+        long[] counts = new long[3];
+        Consumer<String> check = url -> {
+            String expected = rewriter.applyAll(url);
+            String actual = rewriter.apply(url);
+            counts[0]++;
+            if (!expected.equals(url)) counts[1]++;
+            if (!expected.equals(actual)) {
+                if (counts[2]++ < 20) System.out.println(url + " expected " + expected + " but got " + actual);
+            }
+        };
+        if (log != null) {
+            new AccessLogReader(format).read(log, entry -> check.accept(entry.getPath()));
+        } else {
+            List<String> parts = new ArrayList<>(Arrays.asList(SAMPLE_PARTS));
+            for (Pattern p : rules.keySet()) {
+                Literals lit = literals(p);
+                if (lit != null && lit.prefix != null && !lit.prefix.isEmpty()) parts.add(lit.prefix);
+                if (lit != null && lit.required != null) parts.add(lit.required);
+            }
+            Random random = new Random(1);
+            for (int n = 0; n < numUrls; n++) {
+                StringBuilder url = new StringBuilder();
+                for (int k = 1 + random.nextInt(5); k > 0; k--) url.append(parts.get(random.nextInt(parts.size())));
+                check.accept(url.toString());
+            }
+        }
+        System.out.println(counts[0] + " urls checked against " + rules.size() + " rules, " + counts[1]
+                + " rewritten, " + counts[2] + " differences");
+        if (counts[2] > 0) {
+            throw new IllegalStateException(counts[2] + " urls were rewritten differently than by trying every rule");
+        }
+    }
+
+    private static void add(Node root, String literal, int rule) {
+        Node node = root;
+        for (int i = 0; i < literal.length(); i++) {
+            node = node.next.computeIfAbsent(literal.charAt(i), c -> new Node());
+        }
+        node.rules.set(rule);
+    }
+
+    /**
+     * set the failure links of the Aho-Corasick automaton breadth-first
+     */
+    private static void link(Node root) {
+        Queue<Node> queue = new ArrayDeque<>();
+        for (Node child : root.next.values()) {
+            child.fail = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (Map.Entry<Character, Node> e : node.next.entrySet()) {
+                Node child = e.getValue();
+                Node f = node.fail;
+                while (f != root && !f.next.containsKey(e.getKey())) f = f.fail;
+                Node target = f.next.get(e.getKey());
+                child.fail = target != null && target != child ? target : root;
+                child.rules.or(child.fail.rules);
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Find the literal prefix of an anchored pattern and the longest literal any match must contain. Only text
+     * outside of groups is considered, a pattern with a top-level alternation, case-insensitive or comments
+     * flags or escapes that aren't plain characters has no literals.
+     */
+    static Literals literals(Pattern pattern) {
+        String re = pattern.pattern();
+        int flags = pattern.flags();
+        if ((flags & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) return null;
+        Literals lit = new Literals();
+        if ((flags & Pattern.LITERAL) != 0) {
+            lit.required = re;
+            return lit;
+        }
+
+        boolean anchored = false;
+        int i = 0;
+        if (re.startsWith("^") && (flags & Pattern.MULTILINE) == 0) {
+            anchored = true;
+            i = 1;
+        } else if (re.startsWith("\\A")) {
+            anchored = true;
+            i = 2;
+        }
+        boolean prefixOpen = anchored;
+        StringBuilder run = new StringBuilder();
+        String longest = null;
+        int depth = 0;
+        while (i < re.length()) {
+            char c = re.charAt(i);
+            boolean literal = false;
+            char value = c;
+            switch (c) {
+                case '\\':
+                    if (i + 1 >= re.length()) return null;
+                    char n = re.charAt(i + 1);
+                    if (n == 'Q') {
+                        int end = re.indexOf("\\E", i + 2);
+                        if (end < 0) end = re.length();
+                        String quoted = re.substring(i + 2, end);
+                        i = end + 2;
+                        if (depth == 0 && !quoted.isEmpty()) {
+                            // a quantifier applies to the last quoted character only
+                            run.append(quoted, 0, quoted.length() - 1);
+                            value = quoted.charAt(quoted.length() - 1);
+                            literal = true;
+                            i--;
+                        } else {
+                            continue;
+                        }
+                    } else if (Character.isLetterOrDigit(n)) {
+                        if ("xuupPkNc0123456789".indexOf(n) >= 0) return null;
+                        // \d, \w, \b, ...
+                        i++;
+                    } else {
+                        value = n;
+                        literal = true;
+                        i++;
+                    }
+                    break;
+                case '[':
+                    i = skipClass(re, i);
+                    if (i < 0) return null;
+                    break;
+                case '(':
+                    if (i + 1 < re.length() && re.charAt(i + 1) == '?') {
+                        int j = i + 2;
+                        while (j < re.length() && (Character.isLetter(re.charAt(j)) || re.charAt(j) == '-')) {
+                            char f = re.charAt(j++);
+                            if (f == 'i' || f == 'x') return null;
+                        }
+                    }
+                    depth++;
+                    break;
+                case ')':
+                    depth--;
+                    break;
+                case '|':
+                    if (depth == 0) return null;
+                    break;
+                case '.':
+                case '^':
+                case '$':
+                    break;
+                case '*':
+                case '?':
+                case '+':
+                case '{':
+                    // a quantifier after a group or class, characters are handled below
+                    i = skipQuantifier(re, i);
+                    if (i < 0) return null;
+                    continue;
+                default:
+                    literal = true;
+            }
+            i++;
+            if (!literal || depth > 0) {
+                longest = longer(longest, run);
+                if (prefixOpen) lit.prefix = run.toString();
+                prefixOpen = false;
+                run.setLength(0);
+                continue;
+            }
+            // the character may be optional or repeated
+            int q = quantifier(re, i);
+            if (q == 0) {
+                run.append(value);
+            } else {
+                if (q == 2) run.append(value);
+                longest = longer(longest, run);
+                if (prefixOpen) lit.prefix = run.toString();
+                prefixOpen = false;
+                run.setLength(0);
+                i = skipQuantifier(re, i);
+                if (i < 0) return null;
+            }
+        }
+        longest = longer(longest, run);
+        if (prefixOpen) lit.prefix = run.toString();
+        lit.required = longest;
+        return lit;
+    }
+
+    private static String longer(String longest, StringBuilder run) {
+        return run.length() > 0 && (longest == null || run.length() > longest.length()) ? run.toString() : longest;
+    }
+
+    /**
+     * @return 0 if no quantifier follows at i, 1 if the preceding atom may be absent, 2 if it is required
+     */
+    private static int quantifier(String re, int i) {
+        if (i >= re.length()) return 0;
+        char c = re.charAt(i);
+        if (c == '*' || c == '?') return 1;
+        if (c == '+') return 2;
+        if (c == '{') {
+            int end = re.indexOf('}', i);
+            if (end < 0) return 0;
+            String min = re.substring(i + 1, end).split(",", -1)[0].trim();
+            try {
+                return Integer.parseInt(min) == 0 ? 1 : 2;
+            } catch (NumberFormatException e) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return index after the quantifier at i including a lazy or possessive suffix, -1 if malformed
+     */
+    private static int skipQuantifier(String re, int i) {
+        if (re.charAt(i) == '{') {
+            int end = re.indexOf('}', i);
+            if (end < 0) return -1;
+            i = end + 1;
+        } else {
+            i++;
+        }
+        if (i < re.length() && (re.charAt(i) == '?' || re.charAt(i) == '+')) i++;
+        return i;
+    }
+
+    /**
+     * @return index of the closing bracket of the character class at i, -1 if malformed
+     */
+    private static int skipClass(String re, int i) {
+        int depth = 0;
+        int j = i;
+        while (j < re.length()) {
+            char c = re.charAt(j);
+            if (c == '\\') {
+                j += 2;
+                continue;
+            }
+            if (c == '[') {
+                depth++;
+                // a ] right after [ or [^ is a literal
+                if (j + 1 < re.length() && re.charAt(j + 1) == '^') j++;
+                if (j + 1 < re.length() && re.charAt(j + 1) == ']') j++;
+            } else if (c == ']') {
+                if (--depth == 0) return j;
+            }
+            j++;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,155 @@
+package com.github.ykozlov.perf.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Collapses request paths into URL templates so that statistics can be aggregated
+ * across pages, renditions and selectors that share the same code path, e.g.
+ * <pre>
+ *   /content/dam/we-retail/en/products/shirt.jpg/_jcr_content/renditions/cq5dam.web.1280.1280.jpeg
+ *      -> /content/dam/we-retail/en/products/*.jpg/_jcr_content/renditions/cq5dam.{sel}.jpeg
+ *   /content/we-retail/en/men.model.json          -> /content/we-retail/en/men.{sel}.json
+ *   /api/orders/42/items/5f2b8c9e0a                -> /api/orders/{id}/items/{hash}
+ * </pre>
+ * Custom rules are applied to the path before the built-in normalization.
+ */
+public class UrlTemplates {
+    public static final String ID = "{id}";
+    public static final String HASH = "{hash}";
+    public static final String SELECTORS = "{sel}";
+
+    static final Set<String> DEFAULT_ASSET_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "svg", "webp", "ico", "tif", "tiff", "bmp",
+            "pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx", "zip",
+            "mp3", "mp4", "webm", "mov", "woff", "woff2", "ttf", "eot", "otf"));
+
+    private static final Pattern HEX = Pattern.compile("[0-9a-fA-F]{8,}|[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    private final Map<Pattern, String> rules = new LinkedHashMap<>();
+    private Set<String> assetExtensions = DEFAULT_ASSET_EXTENSIONS;
+    private boolean collapseSelectors = true;
+
+    public UrlTemplates withRule(Pattern ptrn, String replacement) {
+        rules.put(ptrn, replacement);
+        return this;
+    }
+
+    /**
+     * @param rule rule in the form <code>regex=replacement</code>, e.g. <code>^/content/site/(en|de|fr)/=/content/site/{lang}/</code>
+     */
+    public UrlTemplates withRule(String rule) {
+        int idx = rule.lastIndexOf('=');
+        if (idx <= 0) throw new IllegalArgumentException("invalid template rule, expected regex=replacement: " + rule);
+        return withRule(Pattern.compile(rule.substring(0, idx)), rule.substring(idx + 1));
+    }
+
+    public UrlTemplates withAssetExtensions(String... extensions) {
+        assetExtensions = new HashSet<>(Arrays.asList(extensions));
+        return this;
+    }
+
+    public UrlTemplates collapseSelectors(boolean flag) {
+        collapseSelectors = flag;
+        return this;
+    }
+
+    /**
+     * @param url request path or absolute url, optionally with a query string
+     * @return the url template
+     */
+    public String normalize(String url) {
+        String path = stripHostAndQuery(url);
+        for (Map.Entry<Pattern, String> e : rules.entrySet()) {
+            path = e.getKey().matcher(path).replaceAll(e.getValue());
+        }
+
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        int len = path.length();
+        while (start <= len) {
+            int end = path.indexOf('/', start);
+            if (end < 0) end = len;
+            segments.add(normalizeSegment(path.substring(start, end)));
+            start = end + 1;
+        }
+        return String.join("/", segments);
+    }
+
+    String normalizeSegment(String segment) {
+        if (segment.isEmpty()) return segment;
+        if (isNumeric(segment)) return ID;
+        if (isHash(segment)) return HASH;
+
+        int firstDot = segment.indexOf('.');
+        if (firstDot < 0) return segment;
+
+        int lastDot = segment.lastIndexOf('.');
+        String name = segment.substring(0, firstDot);
+        String ext = segment.substring(lastDot + 1);
+        if (isNumeric(name)) name = ID;
+        else if (isHash(name)) name = HASH;
+
+        if (firstDot == lastDot) {
+            // individual assets share the same code path, renditions are distinguished by selectors
+            if (assetExtensions.contains(ext.toLowerCase())) name = "*";
+            return name + "." + ext;
+        }
+        String selectors = collapseSelectors ? SELECTORS : segment.substring(firstDot + 1, lastDot);
+        return name + "." + selectors + "." + ext;
+    }
+
+    /**
+     * @return path and query string of an absolute url, relative urls are returned as is
+     */
+    public static String stripHost(String url) {
+        int scheme = url.indexOf("://");
+        if (scheme > 0 && scheme < 8) {
+            int start = url.indexOf('/', scheme + 3);
+            return start < 0 ? "/" : url.substring(start);
+        }
+        return url;
+    }
+
+    static String stripHostAndQuery(String url) {
+        int start = 0;
+        int scheme = url.indexOf("://");
+        if (scheme > 0 && scheme < 8) {
+            start = url.indexOf('/', scheme + 3);
+            if (start < 0) return "/";
+        }
+        int end = url.length();
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#' || c == ';') {
+                end = i;
+                break;
+            }
+        }
+        return url.substring(start, end);
+    }
+
+    private static boolean isNumeric(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return !s.isEmpty();
+    }
+
+    private static boolean isHash(String s) {
+        if (s.length() < 8 || !HEX.matcher(s).matches()) return false;
+        // plain words like 'facebook' or 'deadbeef' are not hashes
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') return true;
+        }
+        return false;
+    }
+}
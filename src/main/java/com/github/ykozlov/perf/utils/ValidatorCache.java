@@ -0,0 +1,142 @@
+package com.github.ykozlov.perf.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ETag and Last-Modified validators of earlier responses, used to revalidate a fraction of GET requests with
+ * If-None-Match / If-Modified-Since the way browsers and CDNs do.
+ * <p>
+ * Validators are kept in a bounded {@link LruCache} shared by the worker threads. Latency and bytes of
+ * unconditional requests, conditional requests answered with 304 and conditional requests answered with a full
+ * response are recorded separately.
+ */
+public class ValidatorCache {
+    public static final String[] COLUMNS = {
+            "Request", "Status", "Count", "Mean", "p50", "p90", "p99", "Max", "Avg Bytes", "Total Bytes"};
+
+    static class Validators {
+        final String etag;
+        final String lastModified;
+
+        Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    static class Outcome {
+        final String request;
+        final String status;
+        long count;
+        long sum;
+        long bytes;
+        final QuantileSketch sketch = new QuantileSketch();
+
+        Outcome(String request, String status) {
+            this.request = request;
+            this.status = status;
+        }
+
+        synchronized void record(long elapsed, long numBytes) {
+            count++;
+            sum += elapsed;
+            bytes += numBytes;
+            sketch.add(elapsed);
+        }
+    }
+
+    private final LruCache<String, Validators> cache;
+    private final double fraction;
+    private final Outcome unconditional = new Outcome("unconditional", "200");
+    private final Outcome notModified = new Outcome("conditional", "304");
+    private final Outcome modified = new Outcome("conditional", "200");
+    private final Outcome other = new Outcome("conditional", "other");
+
+    /**
+     * @param capacity max. number of urls to keep validators for
+     * @param fraction share of GET requests with cached validators to send as conditional requests, 0 to 1
+     */
+    public ValidatorCache(int capacity, double fraction) {
+        this.cache = new LruCache<>(capacity);
+        this.fraction = fraction;
+    }
+
+    Validators get(String url) {
+        return cache.get(url);
+    }
+
+    /**
+     * remember the validators of a response, a response without any removes the url
+     */
+    void put(String url, String etag, String lastModified) {
+        if (etag == null && lastModified == null) {
+            cache.remove(url);
+        } else {
+            cache.put(url, new Validators(etag, lastModified));
+        }
+    }
+
+    /**
+     * @return validators to send with this request, or null to send it unconditionally
+     */
+    Validators select(String url) {
+        if (fraction <= 0 || ThreadLocalRandom.current().nextDouble() >= fraction) return null;
+        return get(url);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    void record(boolean conditional, int statusCode, long elapsed, long bytes) {
+        Outcome outcome;
+        if (!conditional) {
+            if (statusCode != 200) return;
+            outcome = unconditional;
+        } else if (statusCode == 304) {
+            outcome = notModified;
+        } else if (statusCode == 200) {
+            outcome = modified;
+        } else {
+            outcome = other;
+        }
+        outcome.record(elapsed, bytes);
+    }
+
+    public long getNotModified() {
+        synchronized (notModified) {
+            return notModified.count;
+        }
+    }
+
+    /**
+     * @return latency and bytes of unconditional 200, conditional 304 and conditional 200 responses
+     */
+    public Report toReport() {
+        Report report = new Report();
+        report.setColumns(COLUMNS);
+        report.setColumnWidth(0, 20 * 254);
+        for (Outcome o : new Outcome[]{unconditional, notModified, modified, other}) {
+            synchronized (o) {
+                if (o.count == 0 && o == other) continue;
+                Report.Row row = report.createRow();
+                row.setValue(0, o.request);
+                row.setValue(1, o.status);
+                row.setValue(2, o.count);
+                if (o.count == 0) continue;
+                row.setValue(3, o.sum / o.count);
+                row.setValue(4, Math.round(o.sketch.quantile(0.5)));
+                row.setValue(5, Math.round(o.sketch.quantile(0.9)));
+                row.setValue(6, Math.round(o.sketch.quantile(0.99)));
+                row.setValue(7, Math.round(o.sketch.getMax()));
+                row.setValue(8, o.bytes / o.count);
+                row.setValue(9, o.bytes);
+                if (o == other) row.setRowStyle(Report.STYLE_BAD);
+            }
+        }
+        Report.Row row = report.createRow();
+        row.setValue(0, "cached urls");
+        row.setValue(2, size());
+        return report;
+    }
+}
@@ -0,0 +1,317 @@
+package com.github.ykozlov.perf.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compact workload extracted from access logs: the request mix with frequencies and an hourly arrival-rate profile.
+ * <p>
+ * Requests are sampled in constant time with Vose's alias method, so the replayer does not need to keep
+ * or re-parse the log. A model can be saved to a tab-delimited file and reused across runs.
+ */
+public class WorkloadModel {
+    private static final Logger logger = LoggerFactory.getLogger(WorkloadModel.class);
+
+    private static final String HEADER = "# workload model";
+
+    private final String[] methods;
+    private final String[] urls;
+    private final long[] counts;
+    private final long[] hourlyRequests;
+    private final long[] hourlyObserved;
+    private final long total;
+    private final double[] probability;
+    private final int[] alias;
+
+    /**
+     * Collects requests passing the method and status filters
+     */
+    public static class Builder {
+        private Set<String> methods = new HashSet<>(Arrays.asList("GET"));
+        private Set<Integer> statuses = new HashSet<>(Arrays.asList(200));
+        private final Map<String, long[]> counts = new HashMap<>();
+        private final long[] hourlyRequests = new long[24];
+        private final Set<Long> observedHours = new HashSet<>();
+
+        /**
+         * @param methods comma-separated list of methods to keep, empty or "*" keeps all, default is GET
+         */
+        public Builder withMethods(String methods) {
+            this.methods = new HashSet<>();
+            for (String m : methods.split(",")) {
+                if (!m.trim().isEmpty() && !m.trim().equals("*")) this.methods.add(m.trim().toUpperCase());
+            }
+            return this;
+        }
+
+        /**
+         * @param statuses comma-separated list of status codes to keep, empty or "*" keeps all, default is 200
+         */
+        public Builder withStatuses(String statuses) {
+            this.statuses = new HashSet<>();
+            for (String s : statuses.split(",")) {
+                if (!s.trim().isEmpty() && !s.trim().equals("*")) this.statuses.add(Integer.parseInt(s.trim()));
+            }
+            return this;
+        }
+
+        public Builder add(AccessLogEntry entry) {
+            return add(entry.getMethod(), entry.getPath(), entry.getStatus(), entry.getTimestamp());
+        }
+
+        public Builder add(RequestTable table) {
+            for (int i = 0; i < table.size(); i++) {
+                add(table.getMethod(i), table.getPath(i), table.getStatus(i), table.getTimestamp(i));
+            }
+            return this;
+        }
+
+        public Builder add(String method, String path, int status, long ts) {
+            if (!methods.isEmpty() && !methods.contains(method)) return this;
+            if (!statuses.isEmpty() && !statuses.contains(status)) return this;
+
+            counts.computeIfAbsent(method + " " + path, k -> new long[1])[0]++;
+            if (ts >= 0) {
+                long hour = ts / 3600000;
+                hourlyRequests[(int) (hour % 24)]++;
+                observedHours.add(hour);
+            }
+            return this;
+        }
+
+        public WorkloadModel build() {
+            int n = counts.size();
+            String[] methods = new String[n];
+            String[] urls = new String[n];
+            long[] weights = new long[n];
+            int i = 0;
+            for (Map.Entry<String, long[]> e : counts.entrySet()) {
+                int sp = e.getKey().indexOf(' ');
+                methods[i] = e.getKey().substring(0, sp);
+                urls[i] = e.getKey().substring(sp + 1);
+                weights[i] = e.getValue()[0];
+                i++;
+            }
+            long[] observed = new long[24];
+            for (long hour : observedHours) {
+                observed[(int) (hour % 24)]++;
+            }
+            return new WorkloadModel(methods, urls, weights, hourlyRequests.clone(), observed);
+        }
+    }
+
+    WorkloadModel(String[] methods, String[] urls, long[] counts, long[] hourlyRequests, long[] hourlyObserved) {
+        this.methods = methods;
+        this.urls = urls;
+        this.counts = counts;
+        this.hourlyRequests = hourlyRequests;
+        this.hourlyObserved = hourlyObserved;
+        long sum = 0;
+        for (long c : counts) sum += c;
+        this.total = sum;
+        this.probability = new double[counts.length];
+        this.alias = new int[counts.length];
+        initAlias();
+    }
+
+    /**
+     * Vose's alias method: split the weights into n columns of equal height, each holding at most two outcomes
+     */
+    private void initAlias() {
+        int n = counts.length;
+        if (n == 0) return;
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = (double) counts[i] * n / total;
+            if (scaled[i] < 1) small[numSmall++] = i;
+            else large[numLarge++] = i;
+        }
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+            probability[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = scaled[l] + scaled[s] - 1;
+            if (scaled[l] < 1) small[numSmall++] = l;
+            else large[numLarge++] = l;
+        }
+        // leftovers are 1 up to rounding errors
+        while (numLarge > 0) probability[large[--numLarge]] = 1;
+        while (numSmall > 0) probability[small[--numSmall]] = 1;
+    }
+
+    /**
+     * @return index of a request drawn with probability proportional to its frequency in the log
+     */
+    public int sample(Random rnd) {
+        if (urls.length == 0) throw new IllegalStateException("empty workload model");
+        int column = rnd.nextInt(urls.length);
+        return rnd.nextDouble() < probability[column] ? column : alias[column];
+    }
+
+    public int size() {
+        return urls.length;
+    }
+
+    /**
+     * @return number of requests the model was built from
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public String getMethod(int idx) {
+        return methods[idx];
+    }
+
+    public String getUrl(int idx) {
+        return urls[idx];
+    }
+
+    public long getCount(int idx) {
+        return counts[idx];
+    }
+
+    /**
+     * @param hour hour of day, UTC
+     * @return average number of requests per second in the given hour of day or -1 if the log did not cover it
+     */
+    public double getRate(int hour) {
+        return hourlyObserved[hour] == 0 ? -1 : hourlyRequests[hour] / (hourlyObserved[hour] * 3600.);
+    }
+
+    /**
+     * save in a tab-delimited format: 24 hourly lines (hour, requests, observed hours) followed by method, url, count
+     */
+    public void save(File file) throws IOException {
+        if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(HEADER + "\n");
+            for (int h = 0; h < 24; h++) {
+                out.write("hour\t" + h + "\t" + hourlyRequests[h] + "\t" + hourlyObserved[h] + "\n");
+            }
+            for (int i = 0; i < urls.length; i++) {
+                out.write(methods[i] + "\t" + urls[i] + "\t" + counts[i] + "\n");
+            }
+        }
+        logger.info("workload model with {} requests and {} distinct urls saved in {}", total, urls.length, file);
+    }
+
+    public static WorkloadModel load(File file) throws IOException {
+        List<String> methods = new ArrayList<>();
+        List<String> urls = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        long[] hourlyRequests = new long[24];
+        long[] hourlyObserved = new long[24];
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null || !line.equals(HEADER)) throw new IOException("not a workload model: " + file);
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] vals = line.split("\t");
+                if (vals.length == 4 && vals[0].equals("hour")) {
+                    int h = Integer.parseInt(vals[1]);
+                    hourlyRequests[h] = Long.parseLong(vals[2]);
+                    hourlyObserved[h] = Long.parseLong(vals[3]);
+                } else if (vals.length == 3) {
+                    methods.add(vals[0]);
+                    urls.add(vals[1]);
+                    counts.add(Long.parseLong(vals[2]));
+                } else {
+                    throw new IOException("invalid workload model line: " + line);
+                }
+            }
+        }
+        long[] c = new long[counts.size()];
+        for (int i = 0; i < c.length; i++) c[i] = counts.get(i);
+        WorkloadModel model = new WorkloadModel(methods.toArray(new String[0]), urls.toArray(new String[0]), c,
+                hourlyRequests, hourlyObserved);
+        logger.info("workload model with {} requests and {} distinct urls loaded from {}", model.total, c.length, file);
+        return model;
+    }
+
+    static void usage() {
+        System.err.println("Usage: com.github.ykozlov.perf.utils.WorkloadModel [options...] <file>...");
+        System.err.println("  Builds a workload model from access logs for AccessLogReplayer --model");
+        System.err.println("  --methods list                 Comma-separated methods to keep, * for all, default is GET");
+        System.err.println("  --status list                  Comma-separated status codes to keep, * for all, default is 200");
+        System.err.println("  --from time, --to time         Only use requests in the time range, e.g. --from '2019-05-01 10:00'");
+        System.err.println("  --log-format name|pattern      combined, dispatcher (default), cdn or an Apache LogFormat string");
+        System.err.println("  --saveAs file                  Save the model in the given file, default is workload.model");
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> paths = new ArrayList<>();
+        Builder builder = new Builder();
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        AccessLogFormat format = AccessLogFormat.DISPATCHER;
+        String saveAs = "workload.model";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--methods":
+                    builder.withMethods(args[++i]);
+                    break;
+                case "--status":
+                    builder.withStatuses(args[++i]);
+                    break;
+                case "--from":
+                    from = LogIndex.parseTime(args[++i]);
+                    break;
+                case "--to":
+                    to = LogIndex.parseTime(args[++i]);
+                    break;
+                case "--log-format":
+                    format = AccessLogFormat.forName(args[++i]);
+                    break;
+                case "--saveAs":
+                    saveAs = args[++i];
+                    break;
+                default:
+                    if (args[i].startsWith("-"))
+                        throw new IllegalArgumentException("unknown input argument: " + args[i]);
+
+                    paths.add(args[i]);
+                    break;
+            }
+        }
+        if (paths.isEmpty()) {
+            usage();
+            return;
+        }
+
+        AccessLogReader reader = new AccessLogReader(format).withTimeRange(from, to);
+        for (String path : paths) {
+            reader.read(Paths.get(path), builder::add);
+        }
+        WorkloadModel model = builder.build();
+        model.save(new File(saveAs));
+        for (int h = 0; h < 24; h++) {
+            double rate = model.getRate(h);
+            if (rate >= 0) System.out.println(String.format("%02d:00 UTC\t%.2f req/s", h, rate));
+        }
+    }
+}